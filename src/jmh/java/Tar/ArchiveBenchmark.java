@@ -0,0 +1,128 @@
+package Tar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Archiver.archive() and Archive.unzip() on trees of different file size distributions:
+//   tiny    20 000 files of 1 KB
+//   mixed   300 files between 1 KB and 8 MB, log-uniform
+//   huge    4 files of 256 MB
+// Cold runs drop the page cache before every invocation, which needs root on Linux, so they only run
+// when asked for with -p cache=cold. Build and run with
+//   mvn -Pbenchmark package -DskipTests
+//   java -jar target/benchmarks.jar ArchiveBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+    @Param({ "tiny", "mixed", "huge" })
+    public String distribution;
+
+    @Param({ "warm" })
+    public String cache;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        root = Files.createTempDirectory("tar-benchmark-");
+        Path tree = root.resolve("tree");
+        // Same files in every run
+        Random random = new Random(42);
+        switch (distribution) {
+            case "tiny" -> createFiles(tree, random, 20_000, 1024, 1024);
+            case "mixed" -> createFiles(tree, random, 300, 1024, 8 * Constants.mb);
+            case "huge" -> createFiles(tree, random, 4, 256 * Constants.mb, 256 * Constants.mb);
+            default -> throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+
+        // Archive extracted by unzip, in a directory of its own as it is extracted next to itself
+        Files.createDirectories(root.resolve("extract"));
+        archiveName = root.resolve("extract").resolve("benchmark.tar").toString();
+        Archiver archiver = new Archiver(List.of(tree.toString()), archiveName);
+        archiver.setThreads(threads);
+        archiver.archive();
+        outputName = root.resolve("benchmark.tar").toString();
+        inputs = List.of(tree.toString());
+    }
+
+    @Setup(Level.Invocation)
+    public void clearOutput() throws IOException {
+        Files.deleteIfExists(Path.of(outputName));
+        FileUtils.deleteDirectory(root.resolve("extract").resolve("tree").toFile());
+        if (cache.equals("cold")) {
+            PageCache.drop();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Benchmark
+    public void archive(Counters counters) throws IOException {
+        Archiver archiver = new Archiver(inputs, outputName);
+        archiver.setThreads(threads);
+        archiver.archive();
+        counters.add(totalBytes, fileCount);
+    }
+
+    @Benchmark
+    public void unzip(Counters counters) throws IOException {
+        Archive archive = new Archive(archiveName);
+        archive.setThreads(threads);
+        archive.unzip();
+        counters.add(totalBytes, fileCount);
+    }
+
+    // Files of random (incompressible) bytes with sizes spread log-uniformly between minSize and maxSize,
+    // in directories of at most 1000 files
+    private void createFiles(Path tree, Random random, int count, int minSize, int maxSize) throws IOException {
+        byte[] block = new byte[Constants.mb];
+        for (int i = 0; i < count; i++) {
+            Path directory = tree.resolve("dir-" + i / 1000);
+            Files.createDirectories(directory);
+            long size = Math.round(minSize * Math.pow((double) maxSize / minSize, random.nextDouble()));
+            try (OutputStream out = Files.newOutputStream(directory.resolve("file-" + i + ".bin"))) {
+                for (long written = 0; written < size; written += block.length) {
+                    random.nextBytes(block);
+                    out.write(block, 0, (int) Math.min(block.length, size - written));
+                }
+            }
+            totalBytes += size;
+            fileCount++;
+        }
+    }
+
+    private Path root;
+    private List<String> inputs;
+    private String outputName;
+    private String archiveName;
+    private long totalBytes;
+    private long fileCount;
+}
@@ -0,0 +1,27 @@
+package Tar;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Secondary results reported next to ops/s: JMH divides every field by the measured time,
+// so they come out as MB/s and files/s
+@AuxCounters(AuxCounters.Type.EVENTS)
+@State(Scope.Thread)
+public class Counters {
+    public double megabytes;
+    public long files;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+        files = 0;
+    }
+
+    void add(long bytes, long fileCount) {
+        megabytes += (double) bytes / Constants.mb;
+        files += fileCount;
+    }
+}
@@ -0,0 +1,81 @@
+package Tar;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reading the list of entries of version 1 (text header) and version 2 (binary index) archives,
+// and validating entry names, in memory so only the parsing is measured.
+// Results are the ops/s, the files counter is the number of entries per second.
+// Generated code lives in another package, so the benchmarks return counts instead of package-private types
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@State(Scope.Benchmark)
+public class HeaderBenchmark {
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int entries;
+
+    @Setup(Level.Trial)
+    public void createHeaders() {
+        // Names look like the ones Archiver writes for a tree of rotated log files.
+        // An EntryTable keeps 10^7 of them within the heap of the fork
+        EntryTable list = new EntryTable(entries);
+        StringBuilder text = new StringBuilder(entries * 48);
+        long offset = 0;
+        for (int i = 0; i < entries; i++) {
+            String name = "logs/service-" + i % 100 + "/service-" + i + ".log";
+            long size = i * 7919L % 100_000_000;
+            list.add(new Entry(name, size, offset));
+            offset += size;
+            text.append(name).append(" [").append(size).append("]\n");
+        }
+        names = list.names();
+        textHeader = text.toString().getBytes(Constants.headerEncoding);
+        index = FormatV2.index(list);
+    }
+
+    @Benchmark
+    public int parseTextHeader(Counters counters) throws IOException {
+        counters.add(textHeader.length, entries);
+        return HeaderParser.parseEntries(textHeader, "benchmark").size();
+    }
+
+    @Benchmark
+    public int readIndex(Counters counters) throws IOException {
+        counters.add(index.length, entries);
+        return FormatV2.readIndex(new ByteArrayInputStream(index), Long.MAX_VALUE, "benchmark").size();
+    }
+
+    @Benchmark
+    public int checkFilenames(Counters counters) {
+        int valid = 0;
+        for (String name : names) {
+            if (Archive.checkFilename(name)) {
+                valid++;
+            }
+        }
+        counters.add(0, entries);
+        return valid;
+    }
+
+    private List<String> names;
+    private byte[] textHeader;
+    private byte[] index;
+}
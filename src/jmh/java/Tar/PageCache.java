@@ -0,0 +1,23 @@
+package Tar;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Empties the Linux page cache, so the next run reads from the disk
+class PageCache {
+    private static final Path dropCaches = Path.of("/proc/sys/vm/drop_caches");
+
+    static void drop() throws IOException {
+        try {
+            // Dirty pages are not dropped, so they are written out first
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            Files.writeString(dropCaches, "1");
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while syncing");
+        } catch (IOException ioEx) {
+            throw new IOException("Cold runs need root on Linux to write " + dropCaches, ioEx);
+        }
+    }
+}
@@ -1,24 +1,47 @@
 package Tar;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
 import org.apache.commons.io.FilenameUtils;
 
 class Archive {
-    // Checks if the given filename is a valid filename in Windows
+    // Checks if the given entry name is a valid relative path in Windows, see HeaderParser.checkName
     public static boolean checkFilename(String filename) {
-        final Set<Character> excludedChars = new HashSet<>(
-                Arrays.asList('/', '\n', '\r', '\t', '\0',
-                        '\f', '`', '?', '*', '\\', '<', '>', '|', '\"', ':'));
-        return filename.chars().mapToObj((i) -> (char) i).noneMatch(excludedChars::contains);
+        int segmentStart = 0;
+        for (int i = 0; i <= filename.length(); i++) {
+            if (i == filename.length() || filename.charAt(i) == '/') {
+                String segment = filename.substring(segmentStart, i);
+                if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                    return false;
+                }
+                segmentStart = i + 1;
+            } else if (HeaderParser.isExcluded(filename.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     Archive(String filename) throws IOException {
@@ -26,93 +49,626 @@ class Archive {
             throw new IOException("Given archive cannot be read");
         }
         fileIS = new FileInputStream(filename);
-        files = new ArrayList<>();
         this.filename = filename;
 
-        readHeader();
+        try {
+            files = readEntries();
+        } catch (IOException | RuntimeException ex) {
+            fileIS.close();
+            throw ex;
+        }
     }
 
-    // Read header section of the file and save read data to files variable
-    private void readHeader() throws IOException {
-        Tuple<String, Integer> headerData;
-        String firstString;
-        try (BufferedReader fileReader = new BufferedReader(new FileReader(filename, Constants.headerEncoding))) {
-            firstString = fileReader.readLine();
-            headerData = getFileData(firstString);
-            if (!headerData.first.equals("header")) {
+    // Read the list of entries of a version 1 or version 2 archive
+    private EntryTable readEntries() throws IOException {
+        FileChannel channel = fileIS.getChannel();
+        EntryTable beforeAppend = UndoFile.readIndex(filename, channel);
+        if (beforeAppend != null) {
+            return beforeAppend;
+        }
+        long indexOffset = FormatV2.findIndex(channel, filename);
+        if (indexOffset < 0) {
+            return readHeader();
+        }
+        channel.position(indexOffset);
+        // Not closed, closing it would close the archive
+        InputStream indexStream = new BufferedInputStream(fileIS, Constants.mb);
+        return FormatV2.readIndex(indexStream, indexOffset, filename);
+    }
+
+    // Read the text header of a version 1 archive
+    private EntryTable readHeader() throws IOException {
+        EntryTable entries = readHeader(fileIS, filename);
+
+        // File contents follow the header in the same order, so every entry's offset is known up front
+        long offset = fileIS.getChannel().position();
+        for (int i = 0; i < entries.size(); i++) {
+            entries.setOffset(i, offset);
+            offset += entries.sizeOf(i);
+        }
+        if (offset > fileIS.getChannel().size()) {
+            throw new IOException("Archive " + filename + " is truncated");
+        }
+        return entries;
+    }
+
+    // Read the header from the current position of the stream in a single forward pass,
+    // leaving the stream at the start of the first file's contents
+    static EntryTable readHeader(InputStream in, String filename) throws IOException {
+        // The first line is a few bytes long, so it is read byte by byte to not consume anything past it
+        byte[] firstLine = new byte[32];
+        int length = 0;
+        int nextByte;
+        while ((nextByte = in.read()) != '\n') {
+            if (nextByte < 0 || length == Constants.max_header_line) {
                 throw new IOException("Invalid header in file" + filename);
             }
+            if (length == firstLine.length) {
+                firstLine = Arrays.copyOf(firstLine, length * 2);
+            }
+            firstLine[length++] = (byte) nextByte;
+        }
+        long headerSize = HeaderParser.parseHeaderLine(firstLine, length, filename);
+        if (headerSize > Integer.MAX_VALUE - 8) {
+            throw new IOException("Invalid header in file" + filename);
         }
-        fileIS.skipNBytes(firstString.getBytes(Constants.headerEncoding).length + 1 /*account for \n char*/);
 
         // Read the rest of the header
-        byte[] buffer = new byte[headerData.second];
-        // Hom many bytes was read
-        int readBytes = 0;
-        do {
-            readBytes += fileIS.read(buffer, readBytes, headerData.second - readBytes);
-        } while (headerData.second < readBytes);
+        byte[] buffer = in.readNBytes((int) headerSize);
+        if (buffer.length != headerSize) {
+            throw new IOException("Invalid header in file" + filename);
+        }
+        return HeaderParser.parseEntries(buffer, filename);
+    }
 
-        String headerString = new String(buffer, Constants.headerEncoding);
-        String[] headerLines = headerString.split("\n");
+    public void unzip() throws IOException {
+        extractEntries(FilenameUtils.getFullPath(filename), files.entries());
+    }
 
-        for (String line : headerLines) {
-            Tuple<String, Integer> fileData = getFileData(line);
-            files.add(new Tuple<>(fileData.first, fileData.second));
+    // Extract only the entries whose name equals one of the patterns or matches it as a glob.
+    // Payloads of the other entries are never read
+    public void extract(List<String> patterns) throws IOException {
+        List<PathMatcher> matchers = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
         }
+
+        List<Entry> selected = new ArrayList<>();
+        boolean[] used = new boolean[patterns.size()];
+        for (int i = 0; i < files.size(); i++) {
+            String name = files.name(i);
+            boolean matched = false;
+            for (int j = 0; j < patterns.size(); j++) {
+                // Names like "strange name [1002]" are valid globs too, so an exact match is checked first
+                if (name.equals(patterns.get(j)) || matchers.get(j).matches(Path.of(name))) {
+                    used[j] = true;
+                    matched = true;
+                }
+            }
+            if (matched) {
+                selected.add(files.entry(i));
+            }
+        }
+        // Fail before writing anything, like tar does for members that are not in the archive
+        for (int j = 0; j < patterns.size(); j++) {
+            if (!used[j]) {
+                fileIS.close();
+                throw new IOException("No entry matching " + patterns.get(j) + " in " + filename);
+            }
+        }
+        extractEntries(FilenameUtils.getFullPath(filename), selected);
     }
 
-    public void unzip() throws IOException {
-        String path = FilenameUtils.getPath(filename);
-
-        for (Tuple<String, Integer> file : files) {
-            try (FileOutputStream fOS = new FileOutputStream(path + file.first)) {
-                // Read archive content and write it to file
-                int toRead = file.second;
-                // How much bytes was read
-                int readBytes;
-                byte[] buffer = new byte[Constants.max_buffer_size];
-                do {
-                    readBytes = fileIS.read(buffer, 0, Math.min(toRead, Constants.max_buffer_size));
-                    fOS.write(buffer, 0, readBytes);
-                    toRead -= readBytes;
-                } while (toRead > 0);
+    // Extract the given entries by seeking straight to their offsets.
+    // With several threads every entry is extracted on its own worker
+    private void extractEntries(String path, List<Entry> entries) throws IOException {
+        metrics.start(entries.size(), totalBytes(entries));
+        try {
+            createDirectories(path, entries, new HashSet<>());
+            // Entries sharing a name write the same file, so they go one after another in archive order
+            // on a single worker and the last one wins
+            Names names = new Names(entries.size());
+            Map<Integer, List<Entry>> repeated = new HashMap<>();
+            for (int i = 0; i < entries.size(); i++) {
+                String name = entries.get(i).name;
+                int first = names.indexOf(name);
+                names.add(name);
+                if (first >= 0) {
+                    repeated.computeIfAbsent(first, index -> new ArrayList<>(List.of(entries.get(index))))
+                            .add(entries.get(i));
+                }
+            }
+
+            List<Callable<Void>> tasks = new ArrayList<>(entries.size());
+            // Entries written after the workers are done, one by one
+            List<Entry> sequential = new ArrayList<>();
+            for (int index : Volumes.interleave(entries)) {
+                Entry entry = entries.get(index);
+                if (names.indexOf(entry.name) != index) {
+                    continue;
+                }
+                List<Entry> group = repeated.getOrDefault(index, List.of(entry));
+                // Blocks of a split entry are decompressed on all workers at once
+                if (group.stream().anyMatch(member -> member.blockSize > 0)) {
+                    sequential.addAll(group);
+                    continue;
+                }
+                tasks.add(() -> {
+                    for (Entry member : group) {
+                        extractEntry(path, member);
+                    }
+                    return null;
+                });
+            }
+            Workers.runAll(threads, tasks);
+
+            for (Entry entry : sequential) {
+                if (entry.blockSize > 0) {
+                    extractBlocks(channel(entry), path, entry);
+                } else {
+                    extractEntry(path, entry);
+                }
+            }
+        } finally {
+            closeChannels();
+            metrics.finish();
+        }
+    }
+
+    private void extractEntry(String path, Entry entry) throws IOException {
+        EntryEvent event = metrics.entryStarted("extract", entry.name, entry.size);
+        FileChannel source = channel(entry);
+        if (skipUnchanged(source, path, entry, event)) {
+            return;
+        }
+        Checksum checksum = newChecksum(entry);
+        if (entry.dataOffsets != null) {
+            extractSparse(source, path, entry, checksum);
+            checkChecksum(entry, checksum);
+            metrics.entryFinished(event);
+            return;
+        }
+        try (FileChannel out = FileChannel.open(Path.of(path + entry.name), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (entry.chunkOffsets != null) {
+                // Reassemble a deduplicated entry or one that spans volumes from its chunks
+                for (int i = 0; i < entry.chunkOffsets.length; i++) {
+                    copyEngine.copyFrom(chunkChannel(source, entry, i), entry.chunkOffsets[i], out,
+                            entry.chunkLengths[i], checksum, metrics);
+                }
+            } else if (entry.codec == Codecs.stored) {
+                copyEngine.copyFrom(source, entry.offset, out, entry.size, checksum, metrics);
+            } else {
+                try (InputStream in = Codecs.forId(entry.codec).decompress(
+                        new RegionInputStream(source, entry.offset, entry.storedSize))) {
+                    // Decompressing the next buffer overlaps writing the previous one
+                    PipelinedCopy.copy(in, Channels.newOutputStream(out), entry.size, checksum,
+                            metrics, pipelineDepth);
+                }
             }
         }
+        checkChecksum(entry, checksum);
+        metrics.entryFinished(event);
+    }
+
+    // Channel of the archive file or of the volume the entry starts in. Every volume the entry is in
+    // is checked to hold its part
+    private FileChannel channel(Entry entry) throws IOException {
+        if (entry.volume == 0) {
+            return fileIS.getChannel();
+        }
+        if (entry.chunkVolumes == null) {
+            checkVolume(entry.volume, entry.offset, entry.storedSize);
+        } else {
+            for (int i = 0; i < entry.chunkVolumes.length; i++) {
+                checkVolume(entry.chunkVolumes[i], entry.chunkOffsets[i], entry.chunkLengths[i]);
+            }
+        }
+        return volume(entry.volume);
+    }
+
+    // Channel the chunk is read from: source, or the volume of the chunk for entries that span volumes
+    private FileChannel chunkChannel(FileChannel source, Entry entry, int chunk) throws IOException {
+        return entry.chunkVolumes == null ? source : volume(entry.chunkVolumes[chunk]);
+    }
+
+    private void checkVolume(int number, long offset, long length) throws IOException {
+        if (offset > volume(number).size() - length) {
+            throw new IOException("Volume " + number + " of archive " + filename + " is truncated");
+        }
+    }
+
+    // Volumes are opened when first needed
+    private synchronized FileChannel volume(int number) throws IOException {
+        FileChannel volume = volumes.get(number);
+        if (volume == null) {
+            volume = FileChannel.open(Volumes.find(filename, number, volumeDirectories), StandardOpenOption.READ);
+            volumes.put(number, volume);
+        }
+        return volume;
+    }
+
+    private synchronized void closeChannels() throws IOException {
         fileIS.close();
+        for (FileChannel volume : volumes.values()) {
+            volume.close();
+        }
+        volumes.clear();
     }
 
-    // Get filename and filesize from one line in the header
-    private Tuple<String, Integer> getFileData(String rawString) throws IOException {
-        Pattern filenamePattern = Pattern.compile("^[\\s\\S.]+(?=\\s\\[)");
-        Pattern filesizePattern = Pattern.compile("(?<=\\s\\[)\\d+(?=\\]$)");
+    // Create the directories the entries are in below path. Every directory is created once, parents first,
+    // and directories listed in created are left alone. Directories that exist already are fine
+    static void createDirectories(String path, List<Entry> entries, Set<String> created) throws IOException {
+        // Sorted, so every directory comes after its parent, which is a prefix of it
+        TreeSet<String> directories = new TreeSet<>();
+        for (Entry entry : entries) {
+            int separator = entry.name.lastIndexOf('/');
+            while (separator > 0) {
+                String directory = entry.name.substring(0, separator);
+                if (created.contains(directory) || !directories.add(directory)) {
+                    break;
+                }
+                separator = entry.name.lastIndexOf('/', separator - 1);
+            }
+        }
+        for (String directory : directories) {
+            Path directoryPath = Path.of(path + directory);
+            try {
+                Files.createDirectory(directoryPath);
+            } catch (FileAlreadyExistsException faeEx) {
+                if (!Files.isDirectory(directoryPath)) {
+                    throw faeEx;
+                }
+            }
+            created.add(directory);
+        }
+    }
 
-        Matcher filenameMatcher = filenamePattern.matcher(rawString);
-        Matcher filesizeMatcher = filesizePattern.matcher(rawString);
+    // In sync mode, leave a file that already has the contents of the entry alone and report it as skipped
+    private boolean skipUnchanged(FileChannel archiveChannel, String path, Entry entry, EntryEvent event)
+            throws IOException {
+        if (!sync || !unchanged(archiveChannel, Path.of(path + entry.name), entry)) {
+            return false;
+        }
+        metrics.entrySkipped(event);
+        return true;
+    }
 
-        if (!filenameMatcher.find() || !filesizeMatcher.find()) {
-            throw new IOException("Invalid header in file" + filename);
+    // Compare the file on disk with the entry: the size first, which is free, then the checksum of its contents.
+    // Entries of archives without checksums are checksummed from the archive, reading is cheaper than writing
+    private boolean unchanged(FileChannel archiveChannel, Path target, Entry entry) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException nsfEx) {
+            return false;
+        }
+        if (!attributes.isRegularFile() || attributes.size() != entry.size) {
+            return false;
+        }
+        long expected = entry.checksum != FormatV2.noChecksum ? entry.checksum : checksum(archiveChannel, entry);
+        CRC32C checksum = new CRC32C();
+        try (FileChannel existing = FileChannel.open(target, StandardOpenOption.READ)) {
+            if (entry.dataOffsets == null) {
+                CopyEngine.checksum(existing, 0, entry.size, checksum, null);
+                return checksum.getValue() == expected;
+            }
+            // Checksums of sparse entries only cover their data, the holes have to be zeros
+            long end = 0;
+            for (int i = 0; i <= entry.dataOffsets.length; i++) {
+                long dataStart = i < entry.dataOffsets.length ? entry.dataOffsets[i] : entry.size;
+                if (!Sparse.isZero(existing, end, dataStart - end)) {
+                    return false;
+                }
+                if (i < entry.dataOffsets.length) {
+                    CopyEngine.checksum(existing, dataStart, entry.dataLengths[i], checksum, null);
+                    end = dataStart + entry.dataLengths[i];
+                }
+            }
+            return checksum.getValue() == expected;
         }
+    }
+
+    // Write the data regions of a sparse entry at their offsets and never write the holes between them.
+    // Setting the length at the end leaves a hole up to the end of the file if it ends with one
+    private void extractSparse(FileChannel archiveChannel, String path, Entry entry, Checksum checksum)
+            throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(path + entry.name, "rw")) {
+            out.setLength(0);
+            FileChannel outChannel = out.getChannel();
+            long stored = entry.offset;
+            for (int i = 0; i < entry.dataOffsets.length; i++) {
+                outChannel.position(entry.dataOffsets[i]);
+                copyEngine.copyFrom(archiveChannel, stored, outChannel, entry.dataLengths[i], checksum, metrics);
+                stored += entry.dataLengths[i];
+            }
+            out.setLength(entry.size);
+        }
+        Metrics.addBytes(metrics, entry.size - entry.storedSize);
+    }
 
-        int size;
+    // Decompress the blocks of the entry on the worker pool and write them in order,
+    // so the checksum sees the contents front to back
+    private void extractBlocks(FileChannel archiveChannel, String path, Entry entry) throws IOException {
+        EntryEvent event = metrics.entryStarted("extract", entry.name, entry.size);
+        if (skipUnchanged(archiveChannel, path, entry, event)) {
+            return;
+        }
+        long[] frames = Blocks.frameOffsets(entry);
+        Checksum checksum = newChecksum(entry);
+        try (FileChannel out = FileChannel.open(Path.of(path + entry.name), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Callable<byte[]>> tasks = new ArrayList<>(frames.length);
+            for (int i = 0; i < frames.length; i++) {
+                final int block = i;
+                tasks.add(() -> {
+                    long readStart = Metrics.now(metrics);
+                    byte[] raw = readBlock(archiveChannel, entry, frames, block);
+                    Metrics.read(metrics, readStart);
+                    return raw;
+                });
+            }
+            Workers.runOrdered(threads, tasks, raw -> {
+                if (checksum != null) {
+                    checksum.update(raw);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(raw);
+                long writeStart = Metrics.now(metrics);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                Metrics.wrote(metrics, writeStart);
+                Metrics.addBytes(metrics, raw.length);
+            }, raw -> { });
+        }
+        checkChecksum(entry, checksum);
+        metrics.entryFinished(event);
+    }
+
+    // Check the contents of every entry against its checksum on the worker pool, nothing is written.
+    // All entries are checked before the damaged ones are reported
+    public void verify() throws IOException {
+        metrics.start(files.size(), totalBytes(files));
         try {
-            size = Integer.parseInt(rawString.substring(filesizeMatcher.start(), filesizeMatcher.end()));
-        } catch (NumberFormatException nfEx) {
-            throw new IOException("Invalid header in file" + filename);
+            boolean[] damaged = new boolean[files.size()];
+            List<Callable<Void>> tasks = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                final int index = i;
+                final Entry entry = files.entry(i);
+                if (entry.checksum == FormatV2.noChecksum) {
+                    throw new IOException("Entry " + entry.name + " of file " + filename + " has no checksum");
+                }
+                tasks.add(() -> {
+                    EntryEvent event = metrics.entryStarted("verify", entry.name, entry.size);
+                    damaged[index] = checksum(channel(entry), entry) != entry.checksum;
+                    metrics.entryFinished(event);
+                    return null;
+                });
+            }
+            Workers.runAll(threads, tasks);
+
+            List<String> damagedNames = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                if (damaged[i]) {
+                    damagedNames.add(files.name(i));
+                }
+            }
+            if (!damagedNames.isEmpty()) {
+                throw new IOException("Checksum mismatch in " + String.join(", ", damagedNames) + " of file "
+                        + filename);
+            }
+        } finally {
+            closeChannels();
+            metrics.finish();
         }
-        Tuple<String, Integer> out = new Tuple<>(
-                rawString.substring(filenameMatcher.start(), filenameMatcher.end()), size);
+    }
 
-        if (!checkFilename(out.first)) {
-            throw new IOException("Invalid header in file" + filename);
+    // Checksum of the contents of the entry, read straight from the archive
+    private long checksum(FileChannel archiveChannel, Entry entry) throws IOException {
+        CRC32C checksum = new CRC32C();
+        if (entry.chunkOffsets != null) {
+            for (int i = 0; i < entry.chunkOffsets.length; i++) {
+                CopyEngine.checksum(chunkChannel(archiveChannel, entry, i), entry.chunkOffsets[i],
+                        entry.chunkLengths[i], checksum, metrics);
+            }
+        } else if (entry.codec == Codecs.stored) {
+            // Only the data regions of sparse entries are stored and checksummed
+            CopyEngine.checksum(archiveChannel, entry.offset, entry.storedSize, checksum, metrics);
+        } else if (entry.blockSize > 0) {
+            long[] frames = Blocks.frameOffsets(entry);
+            for (int block = 0; block < frames.length; block++) {
+                long readStart = Metrics.now(metrics);
+                byte[] raw = readBlock(archiveChannel, entry, frames, block);
+                Metrics.read(metrics, readStart);
+                Metrics.addBytes(metrics, raw.length);
+                checksum.update(raw);
+            }
+        } else {
+            try (InputStream in = Codecs.forId(entry.codec).decompress(
+                    new RegionInputStream(archiveChannel, entry.offset, entry.storedSize))) {
+                CopyEngine.copyStream(in, OutputStream.nullOutputStream(), entry.size, checksum, metrics);
+            }
+        }
+        return checksum.getValue();
+    }
+
+    // Heap memory extraction may hold at once besides BufferPool: the entry table read from the index, and
+    // the buffers of a pipelined copy on every worker or the threads + 1 blocks in flight of a split entry,
+    // those are extracted one at a time
+    long memoryEstimate() {
+        long pipelines = (long) threads * (pipelineDepth + 2) * BufferPool.shared().bufferSize();
+        long largestBlock = 0;
+        for (int i = 0; i < files.size(); i++) {
+            largestBlock = Math.max(largestBlock, files.blockSizeOf(i));
+        }
+        return files.heapBytes() + Math.max(pipelines, (threads + 1) * 2 * largestBlock);
+    }
+
+    private static long totalBytes(EntryTable entries) {
+        long total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            total += entries.sizeOf(i);
+        }
+        return total;
+    }
+
+    private static long totalBytes(List<Entry> entries) {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    // Entries of version 1 archives and of older version 2 archives are extracted without a checksum
+    private static Checksum newChecksum(Entry entry) {
+        return entry.checksum == FormatV2.noChecksum ? null : new CRC32C();
+    }
+
+    private void checkChecksum(Entry entry, Checksum checksum) throws IOException {
+        if (checksum != null && checksum.getValue() != entry.checksum) {
+            throw new IOException("Checksum mismatch in " + entry.name + " of file " + filename);
         }
-        return out;
+    }
+
+    private byte[] readBlock(FileChannel archiveChannel, Entry entry, long[] frames, int block) throws IOException {
+        int storedLength = entry.blockLengths[block];
+        int rawLength = (int) Math.min(entry.blockSize, entry.size - (long) block * entry.blockSize);
+        Blocks.checkStoredLength(storedLength, rawLength);
+        byte[] stored = FormatV2.readAt(archiveChannel, frames[block] + Blocks.frameHeaderSize,
+                Math.abs(storedLength), filename);
+        return Blocks.decompress(Codecs.forId(entry.codec), stored, storedLength, rawLength);
+    }
+
+    // Read length bytes of the named entry starting at position without extracting it.
+    // Only the blocks covering the range are decompressed for split entries,
+    // entries compressed as a whole have to be decompressed from their start
+    public byte[] readRange(String name, long position, int length) throws IOException {
+        int index = files.find(name);
+        if (index < 0) {
+            throw new NoSuchElementException("No entry " + name + " in " + filename);
+        }
+        Entry entry = files.entry(index);
+        if (position < 0 || length < 0 || position > entry.size - length) {
+            throw new IndexOutOfBoundsException("Range " + position + "+" + length + " is outside of " + name);
+        }
+        FileChannel archiveChannel = channel(entry);
+        if (entry.chunkOffsets != null) {
+            return readChunks(archiveChannel, entry, position, length);
+        } else if (entry.dataOffsets != null) {
+            return readSparse(archiveChannel, entry, position, length);
+        } else if (entry.codec == Codecs.stored) {
+            return FormatV2.readAt(archiveChannel, entry.offset + position, length, filename);
+        } else if (entry.blockSize == 0) {
+            try (InputStream in = Codecs.forId(entry.codec).decompress(
+                    new RegionInputStream(archiveChannel, entry.offset, entry.storedSize))) {
+                in.skipNBytes(position);
+                return in.readNBytes(length);
+            }
+        }
+
+        byte[] range = new byte[length];
+        long[] frames = Blocks.frameOffsets(entry);
+        int copied = 0;
+        while (copied < length) {
+            long rangePosition = position + copied;
+            int block = (int) (rangePosition / entry.blockSize);
+            int inBlock = (int) (rangePosition % entry.blockSize);
+            byte[] raw = readBlock(archiveChannel, entry, frames, block);
+            int count = Math.min(length - copied, raw.length - inBlock);
+            System.arraycopy(raw, inBlock, range, copied, count);
+            copied += count;
+        }
+        return range;
+    }
+
+    // Read a range of a deduplicated entry or of one that spans volumes, only the chunks it overlaps are read
+    private byte[] readChunks(FileChannel archiveChannel, Entry entry, long position, int length) throws IOException {
+        byte[] range = new byte[length];
+        long chunkStart = 0;
+        int copied = 0;
+        for (int i = 0; i < entry.chunkOffsets.length && copied < length; i++) {
+            long chunkEnd = chunkStart + entry.chunkLengths[i];
+            long rangePosition = position + copied;
+            if (rangePosition < chunkEnd) {
+                int count = (int) Math.min(length - copied, chunkEnd - rangePosition);
+                byte[] part = FormatV2.readAt(chunkChannel(archiveChannel, entry, i),
+                        entry.chunkOffsets[i] + (rangePosition - chunkStart), count, filename);
+                System.arraycopy(part, 0, range, copied, count);
+                copied += count;
+            }
+            chunkStart = chunkEnd;
+        }
+        return range;
+    }
+
+    // Read a range of a sparse entry, bytes in holes stay zero and only the data regions it overlaps are read
+    private byte[] readSparse(FileChannel archiveChannel, Entry entry, long position, int length) throws IOException {
+        byte[] range = new byte[length];
+        long end = position + length;
+        long stored = entry.offset;
+        for (int i = 0; i < entry.dataOffsets.length && entry.dataOffsets[i] < end; i++) {
+            long from = Math.max(position, entry.dataOffsets[i]);
+            long to = Math.min(end, entry.dataOffsets[i] + entry.dataLengths[i]);
+            if (from < to) {
+                byte[] part = FormatV2.readAt(archiveChannel, stored + (from - entry.dataOffsets[i]),
+                        (int) (to - from), filename);
+                System.arraycopy(part, 0, range, (int) (from - position), part.length);
+            }
+            stored += entry.dataLengths[i];
+        }
+        return range;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.threads = threads;
+    }
+
+    public void setCopyEngine(CopyEngine copyEngine) {
+        this.copyEngine = copyEngine;
+    }
+
+    // Directories to look for the volumes of a split archive in, after the directory of the archive itself
+    public void setVolumeDirectories(List<String> volumeDirectories) {
+        this.volumeDirectories = volumeDirectories;
+    }
+
+    // Only write entries whose file is missing or differs from them, so extracting again over a previous
+    // extraction writes just what changed
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    // Decompressed or streamed entries are written while the next buffer is read, see Archiver.setPipelineDepth
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 0) {
+            throw new IllegalArgumentException("Queue depth cannot be negative");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    // Counters of the running or the last job, they may be read from any thread while it runs
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void setListener(ProgressListener listener) {
+        metrics.setListener(listener);
     }
 
     private final String filename;
     private final FileInputStream fileIS;
     // Files, contained in given archive
-    // String - filename
-    // Integer - file size in bytes
-    private final List<Tuple<String, Integer>> files;
+    private final EntryTable files;
+    private CopyEngine copyEngine = CopyEngine.TRANSFER;
+    private int threads = 1;
+    private boolean sync = false;
+    private List<String> volumeDirectories = List.of();
+    // Open volumes of a split archive by number
+    private final Map<Integer, FileChannel> volumes = new HashMap<>();
+    private int pipelineDepth = Constants.pipeline_depth;
+    private final Metrics metrics = new Metrics();
 }
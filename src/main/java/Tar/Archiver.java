@@ -1,65 +1,1048 @@
 package Tar;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
 
 public class Archiver {
+    // Directories are archived with everything below them, their entries are named by their path
+    // starting at the directory, e.g. "dir/sub/file.txt". Files given directly are named without their path
     public Archiver(List<String> in, String out) {
-        files = new ArrayList<>();
+        files = new EntryTable();
+        paths = new Names();
 
         outputFilename = out;
         for (String file : in) {
-            File nF = new File(file);
-            if (!nF.exists() || nF.isDirectory()) {
-                throw new IllegalArgumentException(
-                        "File " + file + " does not exist");
+            Path path = Path.of(file);
+            // One attribute read tells whether the file exists, whether it is a directory and its size
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException ioEx) {
+                throw new IllegalArgumentException("File " + file + " does not exist");
+            }
+            Path fileName = path.toAbsolutePath().normalize().getFileName();
+            if (!attributes.isDirectory()) {
+                addFile(path.toString(), attributes.size(), fileName.toString());
+                continue;
+            }
+            if (fileName == null) {
+                throw new IllegalArgumentException("Cannot archive the root directory " + file);
+            }
+            try {
+                for (FileTree.Found found : FileTree.walk(path, fileName.toString())) {
+                    addFile(found.path, found.size, found.name);
+                }
+            } catch (UncheckedIOException uioEx) {
+                throw new IllegalArgumentException("Directory " + file + " cannot be read: "
+                        + uioEx.getCause().getMessage());
             }
-            files.add(new Tuple<>(nF.toString(), nF.length()));
         }
     }
 
     public void archive() throws IOException {
+        checkSettings();
         File out = new File(outputFilename);
         if (!out.createNewFile())
             throw new IllegalArgumentException("File " + outputFilename + " already exists");
 
+        metrics.start(files.size(), totalBytes());
+        try {
+            // Left by an append to an earlier archive of this name, it would be taken for this archive's old index
+            Files.deleteIfExists(UndoFile.path(outputFilename));
+            // Compressed sizes are not known in advance, so compressed archives are written front to back
+            if (volumeSize > 0) {
+                archiveVolumes(out);
+            } else if (threads > 1 && codec == null && !deduplicate) {
+                archiveParallel(out, new ArrayList<>(), createEntries(), 0);
+            } else {
+                archiveSequential(out);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Do not leave a half written archive behind
+            out.delete();
+            throw ex;
+        } finally {
+            metrics.finish();
+        }
+    }
+
+    private void archiveSequential(File out) throws IOException {
         try (FileOutputStream writer = new FileOutputStream(out)) {
-            // Construct and write the header
-            StringBuilder toWrite = new StringBuilder();
-            for (Tuple<String, Long> file : files) {
-                // Separate the name of the file
-                toWrite.append(file.first.substring(file.first.lastIndexOf("\\") + 1));
-                toWrite.append(" [");
-                toWrite.append(file.second.toString());
-                toWrite.append("]\n");
-            }
-            // Write header size at the start
-            writer.write(
-                    ("header [" + (toWrite.toString().getBytes(Constants.headerEncoding).length) + "]\n")
-                            .getBytes(Constants.headerEncoding));
-            writer.write(toWrite.toString().getBytes(Constants.headerEncoding));
-
-            // Write file contents
-            for (Tuple<String, Long> file : files) {
-                try (FileInputStream fileIS = new FileInputStream(file.first)) {
-                    // Read archive content and write it to file
-                    long toRead = file.second;
-                    // How many bytes was read
-                    int readBytes;
-                    byte[] buffer = new byte[Constants.max_buffer_size];
-                    do {
-                        readBytes = fileIS.read(buffer, 0, (int) Math.min(toRead, Constants.max_buffer_size));
-                        writer.write(buffer, 0, readBytes);
-                        toRead -= readBytes;
-                    } while (toRead > 0);
-                }
-            }
-        }
-    }
-
-    private List<Tuple<String, Long>> files;
+            writeArchive(writer);
+        }
+    }
+
+    // Write the archive to any stream in a single forward pass, e.g. stdout, a pipe or a socket.
+    // The output filename given to the constructor is not used
+    public void archive(OutputStream writer) throws IOException {
+        checkSettings();
+        if (volumeSize > 0) {
+            throw new IllegalArgumentException("Volumes cannot be written to a stream");
+        }
+        metrics.start(files.size(), totalBytes());
+        try {
+            writeArchive(writer);
+        } finally {
+            metrics.finish();
+        }
+    }
+
+    private void writeArchive(OutputStream writer) throws IOException {
+        List<Entry> entries = createEntries();
+        byte[] leading = leadingBytes(entries);
+        writer.write(leading);
+        long end = writeContents(writer, entries, leading.length);
+        writer.write(closingBytes(entries, end));
+        writer.flush();
+    }
+
+    // Two files under one name would be extracted over each other
+    private void addFile(String path, long size, String name) {
+        int other = files.find(name);
+        if (other >= 0) {
+            throw new IllegalArgumentException("Files " + paths.get(other) + " and " + path
+                    + " would both be stored as " + name);
+        }
+        files.add(new Entry(name, size));
+        paths.add(path);
+    }
+
+    // Add the files to the end of an existing version 2 archive given as the output filename.
+    // Only the new contents and a new index are written: the new entries start where the old index was,
+    // and the new index lists the old entries and the new ones. If anything fails the old index is put back
+    public void append() throws IOException {
+        checkSettings();
+        if (formatVersion == 1) {
+            throw new IllegalArgumentException("Only version " + FormatV2.version + " archives can be appended to");
+        }
+        if (volumeSize > 0) {
+            throw new IllegalArgumentException("Files cannot be appended as volumes");
+        }
+        File out = new File(outputFilename);
+        // An append that was cut off leaves the old index in the undo file, see UndoFile
+        UndoFile.restore(outputFilename);
+        long indexOffset;
+        byte[] previousClosing;
+        List<Entry> previous;
+        try (FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.READ)) {
+            indexOffset = FormatV2.findIndex(channel, outputFilename);
+            if (indexOffset < 0) {
+                throw new IllegalArgumentException("File " + outputFilename + " is not a version "
+                        + FormatV2.version + " archive");
+            }
+            previousClosing = FormatV2.readAt(channel, indexOffset,
+                    Math.toIntExact(channel.size() - indexOffset), outputFilename);
+            previous = FormatV2.readIndex(new ByteArrayInputStream(previousClosing), indexOffset, outputFilename)
+                    .entries();
+        }
+
+        List<Entry> entries = createEntries();
+        Set<String> names = new HashSet<>();
+        for (Entry entry : previous) {
+            names.add(entry.name);
+        }
+        for (Entry entry : entries) {
+            if (!names.add(entry.name)) {
+                throw new IllegalArgumentException("Archive " + outputFilename + " already has an entry " + entry.name);
+            }
+        }
+
+        UndoFile.save(outputFilename, previousClosing);
+        metrics.start(files.size(), totalBytes());
+        try {
+            if (threads > 1 && codec == null && !deduplicate) {
+                archiveParallel(out, previous, entries, indexOffset);
+            } else {
+                try (FileOutputStream writer = new FileOutputStream(out, true)) {
+                    writer.getChannel().truncate(indexOffset);
+                    long end = writeContents(writer, entries, indexOffset);
+                    List<Entry> all = new ArrayList<>(previous);
+                    all.addAll(entries);
+                    writer.write(closingBytes(all, end));
+                }
+            }
+            UndoFile.commit(outputFilename);
+        } catch (IOException | RuntimeException ex) {
+            // Contents in front of the old index were never touched, so the archive is whole again with it
+            try {
+                UndoFile.restore(outputFilename);
+            } catch (IOException restoreEx) {
+                ex.addSuppressed(restoreEx);
+            }
+            throw ex;
+        } finally {
+            metrics.finish();
+        }
+    }
+
+    // Write the record and contents of every file starting at the given archive position,
+    // returns the position where the last file ends
+    private long writeContents(OutputStream writer, List<Entry> entries, long start) throws IOException {
+        if (codec != null) {
+            return writeCompressed(writer, entries, start);
+        } else if (deduplicate) {
+            return writeDeduplicated(writer, entries, start);
+        }
+
+        long position = start;
+        int i = 0;
+        while (i < files.size()) {
+            // Runs of small files go out together when the archive is a file
+            if (writer instanceof FileOutputStream fileOS && isSmall(i)) {
+                i = writeSmallFiles(fileOS.getChannel(), entries, i, position);
+                Entry last = entries.get(i - 1);
+                position = last.offset + last.size;
+                continue;
+            }
+            int file = i;
+            Entry entry = entries.get(i);
+            EntryEvent event = metrics.entryStarted("archive", entry.name, entry.size);
+            byte[] record = recordBytes(entry);
+            writer.write(record);
+            entry.offset = position + record.length;
+            position += record.length + entry.storedSize;
+            Checksum checksum = newChecksum();
+            if (entry.dataOffsets != null) {
+                copySparse(file, entry, writer, checksum);
+            } else {
+                copyFile(file, writer, checksum, metrics);
+            }
+            setChecksum(entry, checksum);
+            metrics.entryFinished(event);
+            i++;
+        }
+        return position;
+    }
+
+    private boolean isSmall(int file) {
+        return files.sizeOf(file) <= Math.min(Constants.small_file_size, BufferPool.shared().bufferSize());
+    }
+
+    // Read the run of small files starting at first into one pooled buffer and write all of them,
+    // each behind its record, with a single gathering write. Returns the index of the first file not written
+    private int writeSmallFiles(FileChannel out, List<Entry> entries, int first, long start) throws IOException {
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer contents = pool.acquire();
+        try {
+            List<ByteBuffer> parts = new ArrayList<>();
+            List<EntryEvent> events = new ArrayList<>();
+            long position = start;
+            int next = first;
+            while (next < files.size() && next - first < maxGatheredFiles && isSmall(next)
+                    && files.sizeOf(next) <= contents.remaining()) {
+                int file = next;
+                Entry entry = entries.get(next);
+                events.add(metrics.entryStarted("archive", entry.name, entry.size));
+                byte[] record = recordBytes(entry);
+                entry.offset = position + record.length;
+                position = entry.offset + files.sizeOf(file);
+
+                ByteBuffer content = contents.slice(contents.position(), (int) files.sizeOf(file));
+                long readStart = Metrics.now(metrics);
+                try (FileChannel in = FileChannel.open(Path.of(paths.get(file)), StandardOpenOption.READ)) {
+                    while (content.hasRemaining()) {
+                        if (in.read(content) < 0) {
+                            throw new EOFException("Unexpected end of file, " + content.remaining() + " bytes missing");
+                        }
+                    }
+                }
+                Metrics.read(metrics, readStart);
+                checkUnchanged(file);
+                content.flip();
+                contents.position(contents.position() + content.limit());
+                Checksum checksum = newChecksum();
+                if (checksum != null) {
+                    checksum.update(content.duplicate());
+                    entry.checksum = checksum.getValue();
+                }
+                parts.add(ByteBuffer.wrap(record));
+                parts.add(content);
+                next++;
+            }
+
+            ByteBuffer[] gathered = parts.toArray(new ByteBuffer[0]);
+            long toWrite = position - start;
+            long writeStart = Metrics.now(metrics);
+            while (toWrite > 0) {
+                toWrite -= out.write(gathered);
+            }
+            Metrics.wrote(metrics, writeStart);
+            // The files are only done once the write is
+            for (int i = 0; i < events.size(); i++) {
+                Metrics.addBytes(metrics, files.sizeOf(first + i));
+                metrics.entryFinished(events.get(i));
+            }
+            return next;
+        } finally {
+            pool.release(contents);
+        }
+    }
+
+    // Files are compressed on the worker pool and written out in order as soon as they are ready.
+    // Compressed data waits in memory, or in a temporary file when it is larger than Constants.spool_threshold.
+    // A file larger than Constants.block_threshold_factor blocks is split into blocks instead,
+    // which are compressed on all workers at once
+    private long writeCompressed(OutputStream writer, List<Entry> entries, long start) throws IOException {
+        CompressedWriter compressedWriter = new CompressedWriter(writer, entries, start);
+        // Runs of ordinary files go through the pipeline together, large files one at a time
+        int runStart = 0;
+        for (int i = 0; i <= files.size(); i++) {
+            if (i < files.size() && files.sizeOf(i) <= (long) blockSize * Constants.block_threshold_factor) {
+                continue;
+            }
+            List<Callable<Tuple<DeferredFileOutputStream, Long>>> tasks = new ArrayList<>(i - runStart);
+            for (int j = runStart; j < i; j++) {
+                final int file = j;
+                tasks.add(() -> compress(file));
+            }
+            Workers.runOrdered(threads, tasks, compressedWriter, compressed -> discard(compressed.first));
+            if (i < files.size()) {
+                compressedWriter.writeBlocks();
+            }
+            runStart = i + 1;
+        }
+        return compressedWriter.position;
+    }
+
+    // Writes the compressed files in order and keeps track of where the next one goes
+    private class CompressedWriter implements Workers.ResultSink<Tuple<DeferredFileOutputStream, Long>> {
+        CompressedWriter(OutputStream writer, List<Entry> entries, long position) {
+            this.writer = writer;
+            this.entries = entries;
+            this.position = position;
+        }
+
+        @Override
+        public void accept(Tuple<DeferredFileOutputStream, Long> compressed) throws IOException {
+            DeferredFileOutputStream spool = compressed.first;
+            try {
+                int file = next;
+                Entry entry = entries.get(next);
+                // The file was read and compressed on a worker already, the event covers writing it out
+                EntryEvent event = metrics.entryStarted("archive", entry.name, entry.size);
+                // Store the file as is when compression does not make it smaller
+                if (spool.getByteCount() < files.sizeOf(file)) {
+                    entry.codec = codec.id();
+                    entry.storedSize = spool.getByteCount();
+                }
+                byte[] record = recordBytes(entry);
+                writer.write(record);
+                entry.offset = position + record.length;
+                position = entry.offset + entry.storedSize;
+
+                entry.checksum = compressed.second;
+                if (entry.codec == Codecs.stored) {
+                    // Read again, so the checksum is of the bytes that end up in the archive
+                    Checksum checksum = newChecksum();
+                    copyFile(file, writer, checksum, null);
+                    setChecksum(entry, checksum);
+                } else if (!spool.isInMemory() && writer instanceof FileOutputStream fileOS) {
+                    try (FileInputStream spoolIS = new FileInputStream(spool.getFile())) {
+                        copyEngine.copy(spoolIS, fileOS, entry.storedSize);
+                    }
+                } else {
+                    spool.writeTo(writer);
+                }
+                metrics.entryFinished(event);
+                next++;
+            } finally {
+                discard(spool);
+            }
+        }
+
+        // Split the next file into blocks, compress them on the worker pool and write them in order
+        // straight after its record, so the compressed file never waits anywhere as a whole
+        void writeBlocks() throws IOException {
+            int file = next;
+            Entry entry = entries.get(next);
+            EntryEvent event = metrics.entryStarted("archive", entry.name, entry.size);
+            entry.codec = codec.id();
+            entry.blockSize = blockSize;
+            entry.storedSize = FormatV2.unknownSize;
+            byte[] record = recordBytes(entry);
+            writer.write(record);
+            entry.offset = position + record.length;
+
+            int[] blockLengths = new int[Blocks.blockCount(files.sizeOf(file), blockSize)];
+            try (FileChannel in = FileChannel.open(Path.of(paths.get(file)), StandardOpenOption.READ)) {
+                // Every task returns the raw block next to the framed one, the checksum is updated in file order
+                List<Callable<Tuple<byte[], byte[]>>> tasks = new ArrayList<>(blockLengths.length);
+                for (int i = 0; i < blockLengths.length; i++) {
+                    final int block = i;
+                    tasks.add(() -> {
+                        long start = (long) block * blockSize;
+                        int length = (int) Math.min(blockSize, files.sizeOf(file) - start);
+                        long readStart = Metrics.now(metrics);
+                        byte[] raw = readBlock(in, start, length);
+                        Metrics.read(metrics, readStart);
+                        return new Tuple<>(raw, Blocks.compress(codec, raw, length));
+                    });
+                }
+                CRC32C checksum = new CRC32C();
+                int[] nextBlock = { 0 };
+                Workers.runOrdered(threads, tasks, block -> {
+                    checksum.update(block.first);
+                    blockLengths[nextBlock[0]++] = Blocks.storedLength(block.second);
+                    long writeStart = Metrics.now(metrics);
+                    writer.write(block.second);
+                    Metrics.wrote(metrics, writeStart);
+                    Metrics.addBytes(metrics, block.first.length);
+                }, block -> { });
+                entry.checksum = checksum.getValue();
+            }
+            checkUnchanged(file);
+
+            entry.blockLengths = blockLengths;
+            entry.storedSize = Blocks.storedSize(blockLengths);
+            position = entry.offset + entry.storedSize;
+            metrics.entryFinished(event);
+            next++;
+        }
+
+        private final OutputStream writer;
+        private final List<Entry> entries;
+        // Index of the next file to write
+        private int next = 0;
+        private long position;
+    }
+
+    // Files are cut into content-defined chunks on the worker pool and written out in order.
+    // A chunk already written earlier in the archive is referenced from the entry instead of being stored again
+    private long writeDeduplicated(OutputStream writer, List<Entry> entries, long start) throws IOException {
+        // Checksums are computed while the file is chunked, chunks new to the archive are read again to copy them
+        // and hashed again, see DeduplicatingWriter.writeChunk
+        List<Callable<Tuple<List<Chunker.Chunk>, Long>>> tasks = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            final int file = i;
+            tasks.add(() -> {
+                try (CheckedInputStream fileIS = new CheckedInputStream(new FileInputStream(paths.get(file)),
+                        new CRC32C())) {
+                    List<Chunker.Chunk> chunks = Chunker.split(fileIS, files.sizeOf(file));
+                    return new Tuple<>(chunks, fileIS.getChecksum().getValue());
+                }
+            });
+        }
+        DeduplicatingWriter deduplicatingWriter = new DeduplicatingWriter(writer, entries, start);
+        Workers.runOrdered(threads, tasks, deduplicatingWriter, chunked -> { });
+        return deduplicatingWriter.position;
+    }
+
+    // Writes every file as the list of its chunks followed by the chunks that were not seen before
+    private class DeduplicatingWriter implements Workers.ResultSink<Tuple<List<Chunker.Chunk>, Long>> {
+        DeduplicatingWriter(OutputStream writer, List<Entry> entries, long position) {
+            this.writer = writer;
+            this.entries = entries;
+            this.position = position;
+        }
+
+        @Override
+        public void accept(Tuple<List<Chunker.Chunk>, Long> chunked) throws IOException {
+            List<Chunker.Chunk> chunks = chunked.first;
+            int file = next;
+            Entry entry = entries.get(next);
+            // The file was read and chunked on a worker already, the event covers writing it out
+            EntryEvent event = metrics.entryStarted("archive", entry.name, entry.size);
+            entry.checksum = chunked.second;
+
+            // Chunks new to the archive are stored after the record in file order, their offsets are
+            // relative to the start of the contents until the record size is known
+            Map<ByteBuffer, Long> added = new HashMap<>();
+            List<Boolean> relative = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            List<Long> lengths = new ArrayList<>();
+            // Chunks to copy into the archive and their offsets in the file
+            List<Chunker.Chunk> copies = new ArrayList<>();
+            List<Long> copyOffsets = new ArrayList<>();
+            long filePosition = 0;
+            long storedSize = 0;
+            for (Chunker.Chunk chunk : chunks) {
+                ByteBuffer key = ByteBuffer.wrap(chunk.hash);
+                Long offset = seen.get(key);
+                boolean isRelative = offset == null;
+                if (isRelative) {
+                    offset = added.get(key);
+                }
+                if (offset == null) {
+                    offset = storedSize;
+                    added.put(key, offset);
+                    copies.add(chunk);
+                    copyOffsets.add(filePosition);
+                    storedSize += chunk.length;
+                }
+                // Consecutive chunks stored next to each other are referenced as one range
+                int last = offsets.size() - 1;
+                if (last >= 0 && relative.get(last) == isRelative
+                        && offsets.get(last) + lengths.get(last) == offset) {
+                    lengths.set(last, lengths.get(last) + chunk.length);
+                } else {
+                    relative.add(isRelative);
+                    offsets.add(offset);
+                    lengths.add((long) chunk.length);
+                }
+                filePosition += chunk.length;
+            }
+
+            entry.storedSize = storedSize;
+            entry.chunkOffsets = new long[offsets.size()];
+            entry.chunkLengths = new long[offsets.size()];
+            // Offsets do not change the size of the record, so its size is known before they are
+            entry.offset = position + recordBytes(entry).length;
+            for (int i = 0; i < offsets.size(); i++) {
+                entry.chunkOffsets[i] = offsets.get(i) + (relative.get(i) ? entry.offset : 0);
+                entry.chunkLengths[i] = lengths.get(i);
+            }
+            for (Map.Entry<ByteBuffer, Long> chunk : added.entrySet()) {
+                seen.put(chunk.getKey(), entry.offset + chunk.getValue());
+            }
+            writer.write(recordBytes(entry));
+
+            try (FileInputStream fileIS = new FileInputStream(paths.get(file))) {
+                FileChannel in = fileIS.getChannel();
+                for (int i = 0; i < copies.size(); i++) {
+                    writeChunk(in, copyOffsets.get(i), copies.get(i), file);
+                }
+            }
+            checkUnchanged(file);
+            // Chunks that were not stored again count as processed all the same
+            Metrics.addBytes(metrics, files.sizeOf(file) - entry.storedSize);
+            position = entry.offset + entry.storedSize;
+            metrics.entryFinished(event);
+            next++;
+        }
+
+        // Later entries refer to the chunk by its hash, so the bytes stored have to be the ones that were hashed.
+        // The file is read twice and may have changed in between, even when its size did not
+        private void writeChunk(FileChannel in, long offset, Chunker.Chunk chunk, int file) throws IOException {
+            long readStart = Metrics.now(metrics);
+            byte[] bytes = readBlock(in, offset, chunk.length);
+            Metrics.read(metrics, readStart);
+            if (!Arrays.equals(Chunker.hash(bytes), chunk.hash)) {
+                throw new IOException("File " + paths.get(file) + " changed while archiving (chunk at offset "
+                        + offset + " differs from the one deduplicated)");
+            }
+            long writeStart = Metrics.now(metrics);
+            writer.write(bytes);
+            Metrics.wrote(metrics, writeStart);
+            Metrics.addBytes(metrics, chunk.length);
+        }
+
+        private final OutputStream writer;
+        private final List<Entry> entries;
+        // Archive offset of every chunk written so far, by its hash
+        private final Map<ByteBuffer, Long> seen = new HashMap<>();
+        // Index of the next file to write
+        private int next = 0;
+        private long position;
+    }
+
+    private static byte[] readBlock(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(length);
+        while (block.hasRemaining()) {
+            if (in.read(block, position + block.position()) < 0) {
+                throw new EOFException("Unexpected end of file, " + block.remaining() + " bytes missing");
+            }
+        }
+        return block.array();
+    }
+
+    // Compress the file into a spool, together with the checksum of its raw contents
+    private Tuple<DeferredFileOutputStream, Long> compress(int file) throws IOException {
+        DeferredFileOutputStream spool = new DeferredFileOutputStream(Constants.spool_threshold, "tar-", ".spool", null);
+        try {
+            CRC32C checksum = new CRC32C();
+            try (FileInputStream fileIS = new FileInputStream(paths.get(file));
+                    OutputStream compressed = codec.compress(spool)) {
+                // The file is read while the previous buffer is compressed
+                PipelinedCopy.copy(fileIS, compressed, files.sizeOf(file), checksum, metrics, pipelineDepth);
+            }
+            checkUnchanged(file);
+            return new Tuple<>(spool, checksum.getValue());
+        } catch (IOException | RuntimeException ex) {
+            discard(spool);
+            throw ex;
+        }
+    }
+
+    private static void discard(DeferredFileOutputStream spool) {
+        if (!spool.isInMemory()) {
+            spool.getFile().delete();
+        }
+    }
+
+    private void copyFile(int file, OutputStream writer, Checksum checksum, Metrics metrics)
+            throws IOException {
+        try (FileInputStream fileIS = new FileInputStream(paths.get(file))) {
+            if (writer instanceof FileOutputStream fileOS) {
+                copyEngine.copy(fileIS, fileOS, files.sizeOf(file), checksum, metrics);
+            } else {
+                PipelinedCopy.copy(fileIS, writer, files.sizeOf(file), checksum, metrics, pipelineDepth);
+            }
+        }
+        checkUnchanged(file);
+    }
+
+    // Copy only the data regions of a sparse file, one after another. The checksum is of the stored bytes
+    private void copySparse(int file, Entry entry, OutputStream writer, Checksum checksum)
+            throws IOException {
+        try (FileInputStream fileIS = new FileInputStream(paths.get(file))) {
+            FileChannel in = fileIS.getChannel();
+            for (int i = 0; i < entry.dataOffsets.length; i++) {
+                if (writer instanceof FileOutputStream fileOS) {
+                    copyEngine.copyFrom(in, entry.dataOffsets[i], fileOS.getChannel(), entry.dataLengths[i], checksum,
+                            metrics);
+                } else {
+                    PipelinedCopy.copy(new RegionInputStream(in, entry.dataOffsets[i], entry.dataLengths[i]), writer,
+                            entry.dataLengths[i], checksum, metrics, pipelineDepth);
+                }
+            }
+        }
+        checkUnchanged(file);
+        // Holes count as processed without being copied
+        Metrics.addBytes(metrics, entry.size - entry.storedSize);
+    }
+
+    // Scan the files for holes on the worker pool, see Sparse. Small files are not worth it
+    private void findHoles(List<Entry> entries) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            final int file = i;
+            final Entry entry = entries.get(i);
+            if (files.sizeOf(file) <= Constants.small_file_size) {
+                continue;
+            }
+            tasks.add(() -> {
+                try (FileChannel in = FileChannel.open(Path.of(paths.get(file)), StandardOpenOption.READ)) {
+                    Sparse.scan(in, entry, metrics);
+                }
+                return null;
+            });
+        }
+        Workers.runAll(threads, tasks);
+    }
+
+    // Only version 2 archives store checksums, version 1 entries are copied without computing one
+    private Checksum newChecksum() {
+        return formatVersion == 1 ? null : new CRC32C();
+    }
+
+    private static void setChecksum(Entry entry, Checksum checksum) {
+        if (checksum != null) {
+            entry.checksum = checksum.getValue();
+        }
+    }
+
+    private void checkSettings() {
+        if (codec != null && formatVersion == 1) {
+            throw new IllegalArgumentException("Compression needs archive format " + FormatV2.version);
+        }
+        if (deduplicate && formatVersion == 1) {
+            throw new IllegalArgumentException("Deduplication needs archive format " + FormatV2.version);
+        }
+        if (deduplicate && codec != null) {
+            throw new IllegalArgumentException("Deduplication cannot be combined with compression");
+        }
+        if (sparse && formatVersion == 1) {
+            throw new IllegalArgumentException("Sparse files need archive format " + FormatV2.version);
+        }
+        if (sparse && (codec != null || deduplicate)) {
+            throw new IllegalArgumentException("Sparse files cannot be combined with compression or deduplication");
+        }
+        if (volumeSize > 0 && formatVersion == 1) {
+            throw new IllegalArgumentException("Volumes need archive format " + FormatV2.version);
+        }
+        // Volumes are written at once, which needs the place of every entry before anything is written
+        if (volumeSize > 0 && (codec != null || deduplicate)) {
+            throw new IllegalArgumentException("Volumes cannot be combined with compression or deduplication");
+        }
+    }
+
+    // Every entry's offset is known from the sizes collected in the constructor,
+    // so the output is preallocated and each file is copied into its slot on its own worker.
+    // Entries are written from start on, after the previous entries of an archive that is appended to
+    private void archiveParallel(File out, List<Entry> previous, List<Entry> entries, long start)
+            throws IOException {
+        try (FileChannel writer = FileChannel.open(out.toPath(), StandardOpenOption.WRITE)) {
+            long position = start;
+            if (start == 0) {
+                byte[] leading = leadingBytes(entries);
+                writeFully(writer, leading, 0);
+                position = leading.length;
+            }
+
+            for (Entry entry : entries) {
+                byte[] record = recordBytes(entry);
+                writeFully(writer, record, position);
+                entry.offset = position + record.length;
+                position += record.length + entry.storedSize;
+            }
+            try (RandomAccessFile sizer = new RandomAccessFile(out, "rw")) {
+                sizer.setLength(position);
+            }
+
+            List<Callable<Void>> tasks = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                tasks.add(copyTask(i, entries.get(i), writer));
+            }
+            Workers.runAll(threads, tasks);
+            // The index has the checksums, so it is written once every file is copied
+            List<Entry> all = new ArrayList<>(previous);
+            all.addAll(entries);
+            byte[] closing = closingBytes(all, position);
+            writeFully(writer, closing, position);
+            writer.truncate(position + closing.length);
+        }
+    }
+
+    // Copy the file into its slot of the preallocated output, already behind its record
+    private Callable<Void> copyTask(int file, Entry entry, FileChannel writer) {
+        return () -> {
+            EntryEvent event = metrics.entryStarted("archive", entry.name, entry.size);
+            Checksum checksum = newChecksum();
+            try (FileChannel in = FileChannel.open(Path.of(paths.get(file)), StandardOpenOption.READ)) {
+                if (entry.dataOffsets == null) {
+                    copyEngine.copyTo(in, writer, entry.offset, files.sizeOf(file), checksum, metrics);
+                } else {
+                    long writePosition = entry.offset;
+                    for (int j = 0; j < entry.dataOffsets.length; j++) {
+                        in.position(entry.dataOffsets[j]);
+                        copyEngine.copyTo(in, writer, writePosition, entry.dataLengths[j], checksum, metrics);
+                        writePosition += entry.dataLengths[j];
+                    }
+                    Metrics.addBytes(metrics, entry.size - entry.storedSize);
+                }
+            }
+            checkUnchanged(file);
+            setChecksum(entry, checksum);
+            metrics.entryFinished(event);
+            return null;
+        };
+    }
+
+    // Copy a file that spans volumes chunk by chunk into the preallocated volumes, already behind its record
+    private Callable<Void> spanningCopyTask(int file, Entry entry, List<FileChannel> volumes) {
+        return () -> {
+            EntryEvent event = metrics.entryStarted("archive", entry.name, entry.size);
+            Checksum checksum = newChecksum();
+            try (FileChannel in = FileChannel.open(Path.of(paths.get(file)), StandardOpenOption.READ)) {
+                for (int j = 0; j < entry.chunkVolumes.length; j++) {
+                    copyEngine.copyTo(in, volumes.get(entry.chunkVolumes[j] - 1), entry.chunkOffsets[j],
+                            entry.chunkLengths[j], checksum, metrics);
+                }
+            }
+            checkUnchanged(file);
+            setChecksum(entry, checksum);
+            metrics.entryFinished(event);
+            return null;
+        };
+    }
+
+    // Split the archive into volumes of at most volumeSize bytes, see Volumes. Entries go into the current volume
+    // in order and a new volume is started when the next one does not fit. A file larger than a whole volume
+    // fills the rest of the current volume instead and continues in as many new volumes as it needs, as chunks.
+    // Like in archiveParallel every slot is known up front, so all volumes are preallocated and the workers take
+    // the files from the volumes in turn, which writes every volume at once. The archive file gets the index
+    // once every file is copied
+    private void archiveVolumes(File out) throws IOException {
+        List<Entry> entries = createEntries();
+        long capacity = volumeSize - FormatV2.preambleSize;
+        // Where every volume ends
+        List<Long> volumeEnds = new ArrayList<>();
+        // Records of the files that span volumes, written before their chunks were known
+        Map<Integer, byte[]> spanningRecords = new HashMap<>();
+        long position = FormatV2.preambleSize;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            byte[] record = recordBytes(entry);
+            long needed = record.length + entry.storedSize;
+            boolean spans = needed > capacity;
+            if (record.length >= capacity || (spans && entry.dataOffsets != null)) {
+                throw new IllegalArgumentException("File " + entry.name + " does not fit into a volume of "
+                        + volumeSize + " bytes");
+            }
+            // The record and at least the first byte of a spanning file go into the current volume
+            if (volumeEnds.isEmpty() || position + (spans ? record.length + 1 : needed) > volumeSize) {
+                volumeEnds.add(FormatV2.preambleSize + 0L);
+                position = FormatV2.preambleSize;
+            }
+            entry.volume = volumeEnds.size();
+            entry.offset = position + record.length;
+            if (!spans) {
+                position += needed;
+                volumeEnds.set(volumeEnds.size() - 1, position);
+                continue;
+            }
+
+            List<Long> chunkLengths = new ArrayList<>();
+            long remaining = entry.storedSize;
+            long chunkLength = volumeSize - entry.offset;
+            while (remaining > 0) {
+                chunkLengths.add(chunkLength);
+                remaining -= chunkLength;
+                position = (chunkLengths.size() == 1 ? entry.offset : FormatV2.preambleSize) + chunkLength;
+                volumeEnds.set(volumeEnds.size() - 1, position);
+                if (remaining > 0) {
+                    volumeEnds.add(FormatV2.preambleSize + 0L);
+                    chunkLength = Math.min(remaining, capacity);
+                }
+            }
+            int first = entry.volume;
+            entry.chunkOffsets = new long[chunkLengths.size()];
+            entry.chunkLengths = new long[chunkLengths.size()];
+            entry.chunkVolumes = new int[chunkLengths.size()];
+            for (int j = 0; j < chunkLengths.size(); j++) {
+                entry.chunkOffsets[j] = j == 0 ? entry.offset : FormatV2.preambleSize;
+                entry.chunkLengths[j] = chunkLengths.get(j);
+                entry.chunkVolumes[j] = first + j;
+            }
+            spanningRecords.put(i, record);
+        }
+
+        List<Path> paths = new ArrayList<>();
+        List<FileChannel> volumes = new ArrayList<>();
+        try {
+            for (int volume = 1; volume <= volumeEnds.size(); volume++) {
+                Path path = Volumes.path(outputFilename, volume, volumeDirectories);
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                paths.add(path);
+                volumes.add(channel);
+                writeFully(channel, FormatV2.preamble(), 0);
+                try (RandomAccessFile sizer = new RandomAccessFile(path.toFile(), "rw")) {
+                    sizer.setLength(volumeEnds.get(volume - 1));
+                }
+            }
+            List<Callable<Void>> tasks = new ArrayList<>(files.size());
+            for (int i : Volumes.interleave(entries)) {
+                Entry entry = entries.get(i);
+                byte[] record = entry.chunkVolumes == null ? recordBytes(entry) : spanningRecords.get(i);
+                writeFully(volumes.get(entry.volume - 1), record, entry.offset - record.length);
+                tasks.add(entry.chunkVolumes == null ? copyTask(i, entry, volumes.get(entry.volume - 1))
+                        : spanningCopyTask(i, entry, volumes));
+            }
+            Workers.runAll(threads, tasks);
+
+            try (FileOutputStream writer = new FileOutputStream(out)) {
+                writer.write(FormatV2.preamble());
+                writer.write(closingBytes(entries, FormatV2.preambleSize));
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Volumes without an index are of no use
+            closeAll(volumes);
+            for (Path path : paths) {
+                Files.deleteIfExists(path);
+            }
+            throw ex;
+        }
+        closeAll(volumes);
+    }
+
+    private static void closeAll(List<FileChannel> channels) throws IOException {
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    // Heap memory the job may hold at once besides BufferPool: the buffers of a pipelined copy on every worker,
+    // and with compression the threads + 1 results in flight, each a file kept in memory below the spool threshold
+    // or a block next to its compressed frame
+    long memoryEstimate() {
+        long pipelines = (long) threads * (pipelineDepth + 2) * BufferPool.shared().bufferSize();
+        if (codec == null) {
+            return pipelines;
+        }
+        long largestFile = 0;
+        for (int i = 0; i < files.size(); i++) {
+            largestFile = Math.max(largestFile, files.sizeOf(i));
+        }
+        long result = Math.max(Math.min(largestFile, Constants.spool_threshold), 2L * blockSize);
+        return pipelines + (threads + 1) * result;
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (int i = 0; i < files.size(); i++) {
+            total += files.sizeOf(i);
+        }
+        return total;
+    }
+
+    private List<Entry> createEntries() throws IOException {
+        List<Entry> entries = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            entries.add(files.entry(i));
+        }
+        if (sparse) {
+            findHoles(entries);
+        }
+        return entries;
+    }
+
+    // Bytes in front of the first file: the whole header in version 1, the preamble in version 2
+    private byte[] leadingBytes(List<Entry> entries) {
+        return formatVersion == 1 ? buildHeader(entries) : FormatV2.preamble();
+    }
+
+    // Bytes in front of every file, only version 2 has them
+    private byte[] recordBytes(Entry entry) {
+        return formatVersion == 1 ? new byte[0] : FormatV2.localHeader(entry);
+    }
+
+    // Bytes after the last file, the index and the trailer in version 2
+    private byte[] closingBytes(List<Entry> entries, long indexOffset) {
+        if (formatVersion == 1) {
+            return new byte[0];
+        }
+        byte[] index = FormatV2.index(entries);
+        byte[] trailer = FormatV2.trailer(indexOffset);
+        byte[] closing = Arrays.copyOf(index, index.length + trailer.length);
+        System.arraycopy(trailer, 0, closing, index.length, trailer.length);
+        return closing;
+    }
+
+    // Construct the version 1 header: "header [size]" line followed by "name [size]" line for every file
+    private static byte[] buildHeader(List<Entry> entries) {
+        StringBuilder toWrite = new StringBuilder();
+        for (Entry entry : entries) {
+            toWrite.append(entry.name);
+            toWrite.append(" [");
+            toWrite.append(entry.size);
+            toWrite.append("]\n");
+        }
+        byte[] entryLines = toWrite.toString().getBytes(Constants.headerEncoding);
+        // Write header size at the start
+        byte[] sizeLine = ("header [" + entryLines.length + "]\n").getBytes(Constants.headerEncoding);
+
+        byte[] header = Arrays.copyOf(sizeLine, sizeLine.length + entryLines.length);
+        System.arraycopy(entryLines, 0, header, sizeLine.length, entryLines.length);
+        return header;
+    }
+
+    // The header already promised the size seen in the constructor, so a file that grew or shrank since
+    // would leave the archive inconsistent
+    private void checkUnchanged(int file) throws IOException {
+        long currentSize = new File(paths.get(file)).length();
+        if (currentSize != files.sizeOf(file)) {
+            throw new IOException("File " + paths.get(file) + " changed while archiving (expected "
+                    + files.sizeOf(file) + " bytes, found " + currentSize + ")");
+        }
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.threads = threads;
+    }
+
+    public void setCopyEngine(CopyEngine copyEngine) {
+        this.copyEngine = copyEngine;
+    }
+
+    // Counters of the running or the last job, they may be read from any thread while it runs
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void setListener(ProgressListener listener) {
+        metrics.setListener(listener);
+    }
+
+    // Compress every file with the given codec, null stores them as is
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    // Size of the blocks large files are split into when they are compressed
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+
+    // Store chunks of contents that repeat across or within files only once
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    // Buffers queued between the reader and the writer of copies that cannot go through the kernel,
+    // see PipelinedCopy. 0 reads and writes on one thread
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 0) {
+            throw new IllegalArgumentException("Queue depth cannot be negative");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    // Store only the data of files with holes, e.g. disk images, and recreate the holes on extraction
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    // Split the archive into volumes of at most this many bytes, 0 writes a single file. See Volumes
+    public void setVolumeSize(long volumeSize) {
+        if (volumeSize < 0) {
+            throw new IllegalArgumentException("Volume size cannot be negative");
+        }
+        this.volumeSize = volumeSize;
+    }
+
+    // Directories the volumes are spread over in turn, e.g. one per disk. Without any they go next to the archive
+    public void setVolumeDirectories(List<String> volumeDirectories) {
+        this.volumeDirectories = volumeDirectories;
+    }
+
+    // Version of the archive format to write, 1 is the legacy text header
+    public void setFormatVersion(int formatVersion) {
+        if (formatVersion != 1 && formatVersion != FormatV2.version) {
+            throw new IllegalArgumentException("Unsupported archive version " + formatVersion);
+        }
+        this.formatVersion = formatVersion;
+    }
+
+    // Files written by one gathering write at most, two buffers each stay below the usual IOV_MAX of 1024
+    private static final int maxGatheredFiles = 512;
+
+    // Entry name and size of every file
+    private EntryTable files;
+    // Path every file is read from
+    private Names paths;
     private String outputFilename;
+    private CopyEngine copyEngine = CopyEngine.TRANSFER;
+    private int threads = 1;
+    private int formatVersion = FormatV2.version;
+    private Codec codec;
+    private int blockSize = Constants.block_size;
+    private boolean deduplicate = false;
+    private boolean sparse = false;
+    private long volumeSize = 0;
+    private List<String> volumeDirectories = List.of();
+    private int pipelineDepth = Constants.pipeline_depth;
+    private final Metrics metrics = new Metrics();
 }
@@ -8,13 +8,77 @@ import org.kohsuke.args4j.Option;
 import java.util.*;
 
 class ArgParser {
-    @Option(metaVar = "FILENAME", name = "-u", forbids = "-out", usage = "Unzip archive")
+    // Filename standing for stdin with -u and for stdout with -out
+    public static final String STANDARD_STREAM = "-";
+
+    @Option(metaVar = "FILENAME", name = "-u", forbids = "-out", usage = "Unzip archive, - reads it from stdin")
     public String fileToUnzip;
 
-    @Option(metaVar = "FILENAME", name = "-out", forbids = "-u", usage = "Set output filename")
+    @Option(metaVar = "FILENAME", name = "-out", forbids = "-u", usage = "Set output filename, - writes the archive to stdout")
     public String outFilename;
 
-    @Argument(metaVar = "FILENAMES", multiValued = true, usage = "Files to zip")
+    @Option(name = "-append", depends = "-out", usage = "Add the files to the existing archive given with -out")
+    public boolean append;
+
+    @Option(metaVar = "FILENAME", name = "-verify", forbids = {"-u", "-out"},
+            usage = "Check every entry of the archive against its checksum without extracting it")
+    public String fileToVerify;
+
+    @Option(metaVar = "PATTERN", name = "-x", depends = "-u",
+            usage = "Extract only entries with this name or matching this glob (can be repeated)")
+    public List<String> entriesToExtract;
+
+    @Option(name = "-sync", depends = "-u",
+            usage = "Only write entries whose file is missing or differs, compared by size and then checksum")
+    public boolean sync;
+
+    @Option(metaVar = "ENGINE", name = "-engine", usage = "Copy engine: TRANSFER (zero-copy, default) or STREAM")
+    public CopyEngine copyEngine = CopyEngine.TRANSFER;
+
+    @Option(metaVar = "VERSION", name = "-format", forbids = "-u",
+            usage = "Archive format to write: 2 (indexed, default) or 1 (legacy text header)")
+    public int formatVersion = FormatV2.version;
+
+    @Option(metaVar = "CODEC", name = "-codec", forbids = {"-u", "-dedup"}, usage = "Compress every file, e.g. with deflate")
+    public String codecName;
+
+    @Option(metaVar = "BYTES", name = "-blocksize", depends = "-codec",
+            usage = "Size of the blocks large files are split into when they are compressed")
+    public int blockSize = Constants.block_size;
+
+    @Option(name = "-dedup", forbids = "-codec", usage = "Store repeated chunks of contents only once")
+    public boolean deduplicate;
+
+    @Option(name = "-sparse", forbids = {"-u", "-codec", "-dedup"},
+            usage = "Store only the data of files with holes and recreate the holes on extraction")
+    public boolean sparse;
+
+    @Option(metaVar = "BYTES", name = "-volumesize", forbids = {"-u", "-codec", "-dedup", "-append"},
+            usage = "Split the archive into volumes of at most BYTES bytes, written at once by the worker threads."
+                    + " Larger files continue in the next volumes, except sparse ones")
+    public long volumeSize = 0;
+
+    @Option(metaVar = "DIR", name = "-volumedir",
+            usage = "Directory to put volumes in or look for them, e.g. one per disk (can be repeated)")
+    public List<String> volumeDirectories = new ArrayList<>();
+
+    @Option(metaVar = "BYTES", name = "-buffersize", usage = "Size of the pooled copy buffers")
+    public int bufferSize = Constants.pool_buffer_size;
+
+    @Option(metaVar = "N", name = "-buffers", usage = "Number of pooled copy buffers, bounds the memory used for copying")
+    public int buffers = Constants.pool_buffers;
+
+    @Option(metaVar = "N", name = "-queuedepth",
+            usage = "Buffers queued between reading and writing streamed or compressed data, 0 does not overlap them")
+    public int pipelineDepth = Constants.pipeline_depth;
+
+    @Option(metaVar = "N", name = "-threads", usage = "Number of worker threads")
+    public int threads = 1;
+
+    @Option(metaVar = "SECONDS", name = "-progress", usage = "Print progress to stderr every SECONDS seconds, 0 never does")
+    public int progressSeconds = 0;
+
+    @Argument(metaVar = "FILENAMES", multiValued = true, usage = "Files and directories to zip")
     public List<String> filesToZip;
 
     public void parseArguments(final String[] args) {
@@ -26,17 +90,57 @@ class ArgParser {
         try {
             parser.parseArgument(args);
 
-            if (fileToUnzip == null && filesToZip == null) {
+            if (fileToUnzip == null && fileToVerify == null && filesToZip == null) {
                 Main.printError("Please specify files to zip");
                 System.exit(-1);
-            } else if (fileToUnzip == null && outFilename == null) {
-                Main.printError("Please specify action(-u or -out key)");
+            } else if (fileToUnzip == null && fileToVerify == null && outFilename == null) {
+                Main.printError("Please specify action(-u, -verify or -out key)");
                 System.exit(-1);
-            } else if (fileToUnzip != null && filesToZip != null) {
-                Main.printWarning("Do not specify input files when unzipping");
+            } else if ((fileToUnzip != null || fileToVerify != null) && filesToZip != null) {
+                Main.printWarning("Do not specify input files when unzipping or verifying");
                 // Empty the array just in case
                 filesToZip = null;
             }
+            if (STANDARD_STREAM.equals(fileToUnzip) && entriesToExtract != null) {
+                Main.printError("Selected entries cannot be extracted from stdin");
+                System.exit(-1);
+            }
+            if (sync && STANDARD_STREAM.equals(fileToUnzip)) {
+                Main.printError("Entries cannot be synced from stdin");
+                System.exit(-1);
+            }
+            if (append && STANDARD_STREAM.equals(outFilename)) {
+                Main.printError("Files cannot be appended to stdout");
+                System.exit(-1);
+            }
+            if (volumeSize > 0 && STANDARD_STREAM.equals(outFilename)) {
+                Main.printError("Volumes cannot be written to stdout");
+                System.exit(-1);
+            }
+            if (volumeSize < 0) {
+                Main.printError("Volume size cannot be negative");
+                System.exit(-1);
+            }
+            if (blockSize < 1) {
+                Main.printError("Block size must be positive");
+                System.exit(-1);
+            }
+            if (bufferSize < 1 || buffers < 1) {
+                Main.printError("Buffer size and buffer count must be positive");
+                System.exit(-1);
+            }
+            if (pipelineDepth < 0) {
+                Main.printError("Queue depth cannot be negative");
+                System.exit(-1);
+            }
+            if (threads < 1) {
+                Main.printError("Thread count must be positive");
+                System.exit(-1);
+            }
+            if (progressSeconds < 0) {
+                Main.printError("Progress interval cannot be negative");
+                System.exit(-1);
+            }
             // Delete all duplicates if present
             if (filesToZip != null)
                 filesToZip = filesToZip.stream().distinct().toList();
@@ -0,0 +1,144 @@
+package Tar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+// Large entries are split into blocks of a fixed size that are compressed independently,
+// so they can be compressed and decompressed in parallel and a byte range can be read
+// by decompressing only the blocks that cover it.
+// Every block is framed by its stored length (int), a negative length marks a block stored as is
+class Blocks {
+    public static final int frameHeaderSize = 4;
+
+    // Compress length bytes of raw into a framed block
+    static byte[] compress(Codec codec, byte[] raw, int length) throws IOException {
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(length / 2 + frameHeaderSize);
+        framed.write(new byte[frameHeaderSize]);
+        try (OutputStream compressed = codec.compress(framed)) {
+            compressed.write(raw, 0, length);
+        }
+        int storedLength = framed.size() - frameHeaderSize;
+        if (storedLength >= length) {
+            // Compression did not help, keep the block as it is
+            byte[] stored = new byte[frameHeaderSize + length];
+            ByteBuffer.wrap(stored).putInt(-length).put(raw, 0, length);
+            return stored;
+        }
+        byte[] stored = framed.toByteArray();
+        ByteBuffer.wrap(stored).putInt(storedLength);
+        return stored;
+    }
+
+    // Stored length written in front of a framed block
+    static int storedLength(byte[] framed) {
+        return ByteBuffer.wrap(framed).getInt();
+    }
+
+    // Stored lengths come from the archive, so they are checked before a buffer of that size is allocated.
+    // A block is only kept compressed when that made it smaller, see compress
+    static void checkStoredLength(int storedLength, int rawLength) throws IOException {
+        if (storedLength < 0 ? storedLength != -rawLength : storedLength >= rawLength) {
+            throw new IOException("Corrupted block, stored length " + storedLength + " does not fit a block of "
+                    + rawLength + " bytes");
+        }
+    }
+
+    // Decompress a block that takes |storedLength| bytes in the archive into rawLength bytes
+    static byte[] decompress(Codec codec, byte[] stored, int storedLength, int rawLength) throws IOException {
+        checkStoredLength(storedLength, rawLength);
+        if (storedLength < 0) {
+            return stored;
+        }
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(stored))) {
+            byte[] raw = in.readNBytes(rawLength);
+            if (raw.length != rawLength) {
+                throw new EOFException("Unexpected end of block, " + (rawLength - raw.length) + " bytes missing");
+            }
+            return raw;
+        }
+    }
+
+    // Number of bytes all the framed blocks take in the archive
+    static long storedSize(int[] storedLengths) {
+        long size = 0;
+        for (int length : storedLengths) {
+            size += frameHeaderSize + Math.abs((long) length);
+        }
+        return size;
+    }
+
+    // Absolute offset of the frame of every block of the entry
+    static long[] frameOffsets(Entry entry) {
+        long[] offsets = new long[entry.blockLengths.length];
+        long offset = entry.offset;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset += frameHeaderSize + Math.abs((long) entry.blockLengths[i]);
+        }
+        return offsets;
+    }
+
+    static int blockCount(long size, int blockSize) {
+        return (int) ((size + blockSize - 1) / blockSize);
+    }
+
+    // Decompresses framed blocks front to back, it needs neither the block index nor seeking
+    static class BlockInputStream extends InputStream {
+        BlockInputStream(InputStream framed, Codec codec, long size, int blockSize) {
+            this.framed = new DataInputStream(framed);
+            this.codec = codec;
+            this.remaining = size;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            if (block == null || blockPosition == block.length) {
+                if (remaining == 0) {
+                    return -1;
+                }
+                nextBlock();
+            }
+            int count = Math.min(len, block.length - blockPosition);
+            System.arraycopy(block, blockPosition, b, off, count);
+            blockPosition += count;
+            return count;
+        }
+
+        private void nextBlock() throws IOException {
+            int rawLength = (int) Math.min(blockSize, remaining);
+            int storedLength = framed.readInt();
+            checkStoredLength(storedLength, rawLength);
+            byte[] stored = new byte[Math.abs(storedLength)];
+            framed.readFully(stored);
+            block = decompress(codec, stored, storedLength, rawLength);
+            blockPosition = 0;
+            remaining -= rawLength;
+        }
+
+        private final DataInputStream framed;
+        private final Codec codec;
+        private final int blockSize;
+        // Uncompressed bytes in the blocks that are not read yet
+        private long remaining;
+        private byte[] block;
+        private int blockPosition;
+    }
+}
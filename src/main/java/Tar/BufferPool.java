@@ -0,0 +1,57 @@
+package Tar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+// Bounded pool of direct buffers shared by every copy, so copying many files allocates nothing per file.
+// Buffers are created on first use, at most capacity of them exist and a copy that finds all of them
+// in use waits for one. A copy holds one buffer at a time, so waiting cannot deadlock
+public class BufferPool {
+    BufferPool(int bufferSize, int capacity) {
+        if (bufferSize < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Buffer size and buffer count must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.available = new Semaphore(capacity);
+    }
+
+    // Pool used by all archives from now on. Buffers handed out by the previous pool stay valid
+    public static void configure(int bufferSize, int capacity) {
+        shared = new BufferPool(bufferSize, capacity);
+    }
+
+    static BufferPool shared() {
+        return shared;
+    }
+
+    // Take a cleared buffer, waiting while all of them are in use. Give it back with release
+    ByteBuffer acquire() throws IOException {
+        try {
+            available.acquire();
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+        ByteBuffer buffer = idle.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    void release(ByteBuffer buffer) {
+        idle.add(buffer);
+        available.release();
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    private static volatile BufferPool shared = new BufferPool(Constants.pool_buffer_size, Constants.pool_buffers);
+
+    private final int bufferSize;
+    // Permits for buffers that may still be taken, idle ones first and then ones that are not created yet
+    private final Semaphore available;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+}
@@ -0,0 +1,89 @@
+package Tar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Splits contents into chunks at positions picked by a rolling hash of the bytes themselves (a gear hash
+// as in FastCDC), so identical runs of bytes are cut into identical chunks wherever they are in a file,
+// and an insertion only changes the chunks around it
+class Chunker {
+    // One chunk of the contents and the SHA-256 of its bytes
+    static class Chunk {
+        Chunk(byte[] hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        public final byte[] hash;
+        public final int length;
+    }
+
+    private static final long[] gear = new long[256];
+    // Cut when the top chunk_average_bits bits of the hash are zero, the top bits depend on the last 64 bytes
+    private static final long cutMask = -(1L << (Long.SIZE - Constants.chunk_average_bits));
+
+    static {
+        // A fixed seed, the same bytes have to be cut the same way by every run
+        Random random = new Random(0x5EED_C4D0L);
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = random.nextLong();
+        }
+    }
+
+    // Read size bytes from in and cut them into chunks
+    static List<Chunk> split(InputStream in, long size) throws IOException {
+        MessageDigest digest = newDigest();
+        List<Chunk> chunks = new ArrayList<>();
+        byte[] buffer = new byte[(int) Math.min(Math.max(size, 1), Constants.mb)];
+        long toRead = size;
+        long hash = 0;
+        int chunkLength = 0;
+        while (toRead > 0) {
+            int readBytes = in.readNBytes(buffer, 0, (int) Math.min(toRead, buffer.length));
+            if (readBytes == 0) {
+                throw new EOFException("Unexpected end of file, " + toRead + " bytes missing");
+            }
+            toRead -= readBytes;
+
+            // Start of the current chunk's bytes in the buffer
+            int segmentStart = 0;
+            for (int i = 0; i < readBytes; i++) {
+                hash = (hash << 1) + gear[buffer[i] & 0xFF];
+                chunkLength++;
+                if ((chunkLength >= Constants.chunk_min_size && (hash & cutMask) == 0)
+                        || chunkLength == Constants.chunk_max_size) {
+                    digest.update(buffer, segmentStart, i + 1 - segmentStart);
+                    chunks.add(new Chunk(digest.digest(), chunkLength));
+                    segmentStart = i + 1;
+                    chunkLength = 0;
+                    hash = 0;
+                }
+            }
+            digest.update(buffer, segmentStart, readBytes - segmentStart);
+        }
+        if (chunkLength > 0) {
+            chunks.add(new Chunk(digest.digest(), chunkLength));
+        }
+        return chunks;
+    }
+
+    // Hash of a whole chunk, the same as split gives it
+    static byte[] hash(byte[] chunk) {
+        return newDigest().digest(chunk);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsaEx) {
+            // Every Java platform has to support SHA-256
+            throw new IllegalStateException(nsaEx);
+        }
+    }
+}
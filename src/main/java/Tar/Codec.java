@@ -0,0 +1,21 @@
+package Tar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Compression applied to the contents of a single entry.
+// Implementations are registered in Codecs and looked up by the id stored in the archive
+public interface Codec {
+    // Identifier stored in the archive, 0 is reserved for contents stored as is
+    int id();
+
+    // Name used to select the codec on the command line
+    String name();
+
+    // Stream compressing everything written to it into out, closing it finishes the compressed data
+    OutputStream compress(OutputStream out) throws IOException;
+
+    // Stream decompressing the data read from in
+    InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,41 @@
+package Tar;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Registry of the codecs an archive can be written and read with
+public class Codecs {
+    // Id of entries that are stored without compression
+    public static final int stored = 0;
+
+    private static final Map<Integer, Codec> byId = new ConcurrentHashMap<>();
+    private static final Map<String, Codec> byName = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec());
+    }
+
+    public static void register(Codec codec) {
+        if (codec.id() <= stored || codec.id() > 0xFF) {
+            throw new IllegalArgumentException("Codec id must be between 1 and 255");
+        }
+        byId.put(codec.id(), codec);
+        byName.put(codec.name(), codec);
+    }
+
+    public static Codec forId(int id) {
+        Codec codec = byId.get(id);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec " + id);
+        }
+        return codec;
+    }
+
+    public static Codec forName(String name) {
+        Codec codec = byName.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec " + name);
+        }
+        return codec;
+    }
+}
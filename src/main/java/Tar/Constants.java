@@ -6,5 +6,28 @@ import java.nio.charset.StandardCharsets;
 public class Constants {
     public static final int mb = 1_048_576;
     public static final int max_buffer_size = 10 * mb;
+    // Size and number of the direct buffers in BufferPool
+    public static final int pool_buffer_size = mb;
+    public static final int pool_buffers = 32;
+    // Runs of files up to this size are read into one pooled buffer and written with a single gathering write
+    public static final int small_file_size = 64 * 1024;
+    // Compressed entries larger than this wait for the writer in a temporary file instead of memory
+    public static final int spool_threshold = 64 * mb;
+    // Compressed files are split into blocks of this size to compress them on several threads at once
+    public static final int block_size = 4 * mb;
+    // Files larger than this many blocks are split, smaller ones are compressed as a whole
+    public static final int block_threshold_factor = 16;
+    // Buffers waiting between the reader and the writer thread of a pipelined copy
+    public static final int pipeline_depth = 4;
+    // Content-defined chunks used for deduplication are between these sizes, about 2^chunk_average_bits on average
+    public static final int chunk_min_size = 2 * 1024;
+    public static final int chunk_average_bits = 13;
+    public static final int chunk_max_size = 64 * 1024;
+    // Sparse files are scanned for holes in blocks of this size, only blocks of zeros become holes
+    public static final int sparse_block_size = 4 * 1024;
+    // Longest first line ("header [size]") accepted when reading an archive
+    public static final int max_header_line = 64;
+    // Largest region mapped at once by MappedArchive, a single mapping cannot exceed 2 GB
+    public static final long map_segment_size = 1024L * mb;
     public static final Charset headerEncoding = StandardCharsets.UTF_8;
 }
@@ -0,0 +1,242 @@
+package Tar;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+// Strategy used to move file contents between the archive and the files on disk.
+// Every copy can update a checksum with the bytes it moves, so they never have to be read a second time,
+// and can count them and the time it is blocked in metrics. Both may be null
+public enum CopyEngine {
+    // Copy through a heap buffer with read/write calls
+    STREAM,
+    // Let the kernel move the bytes between channels (sendfile / copy_file_range on Linux).
+    // Bytes moved by the kernel are never seen, so copies with a checksum write from a mapping of the source instead
+    TRANSFER;
+
+    public void copy(FileInputStream in, FileOutputStream out, long count) throws IOException {
+        copy(in, out, count, null, null);
+    }
+
+    // Copy count bytes from the current position of in to the current position of out
+    public void copy(FileInputStream in, FileOutputStream out, long count, Checksum checksum, Metrics metrics)
+            throws IOException {
+        if (this == STREAM) {
+            copyStream(in, out, count, checksum, metrics);
+        } else {
+            transfer(in.getChannel(), out.getChannel(), count, checksum, metrics);
+        }
+    }
+
+    public void copyFrom(FileChannel in, long position, FileChannel out, long count) throws IOException {
+        copyFrom(in, position, out, count, null, null);
+    }
+
+    // Copy count bytes starting at position of in to the current position of out.
+    // Positional reads leave in untouched, so several threads may share it
+    public void copyFrom(FileChannel in, long position, FileChannel out, long count, Checksum checksum,
+            Metrics metrics) throws IOException {
+        long toWrite = count;
+        long readPosition = position;
+        if (this == STREAM) {
+            BufferPool pool = BufferPool.shared();
+            ByteBuffer buffer = pool.acquire();
+            try {
+                while (toWrite > 0) {
+                    buffer.clear().limit((int) Math.min(toWrite, buffer.capacity()));
+                    long start = Metrics.now(metrics);
+                    int readBytes = in.read(buffer, readPosition);
+                    Metrics.read(metrics, start);
+                    if (readBytes < 0) {
+                        throw new EOFException("Unexpected end of file, " + toWrite + " bytes missing");
+                    }
+                    buffer.flip();
+                    update(checksum, buffer);
+                    start = Metrics.now(metrics);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    Metrics.wrote(metrics, start);
+                    Metrics.addBytes(metrics, readBytes);
+                    readPosition += readBytes;
+                    toWrite -= readBytes;
+                }
+            } finally {
+                pool.release(buffer);
+            }
+        } else if (checksum != null) {
+            while (toWrite > 0) {
+                ByteBuffer mapped = map(in, readPosition, toWrite);
+                // Reading the mapping faults the pages in
+                long start = Metrics.now(metrics);
+                update(checksum, mapped);
+                Metrics.read(metrics, start);
+                start = Metrics.now(metrics);
+                while (mapped.hasRemaining()) {
+                    out.write(mapped);
+                }
+                Metrics.wrote(metrics, start);
+                Metrics.addBytes(metrics, mapped.limit());
+                readPosition += mapped.limit();
+                toWrite -= mapped.limit();
+            }
+        } else {
+            while (toWrite > 0) {
+                long start = Metrics.now(metrics);
+                long written = in.transferTo(readPosition, toWrite, out);
+                Metrics.transferred(metrics, start);
+                Metrics.addBytes(metrics, Math.max(written, 0));
+                if (written <= 0) {
+                    throw new EOFException("Unexpected end of file, " + toWrite + " bytes missing");
+                }
+                readPosition += written;
+                toWrite -= written;
+            }
+        }
+    }
+
+    public void copyTo(FileChannel in, FileChannel out, long position, long count) throws IOException {
+        copyTo(in, out, position, count, null, null);
+    }
+
+    // Copy count bytes from the current position of in to position of out.
+    // Positional writes leave out untouched, so several threads may share it
+    public void copyTo(FileChannel in, FileChannel out, long position, long count, Checksum checksum,
+            Metrics metrics) throws IOException {
+        long toWrite = count;
+        long writePosition = position;
+        if (this == STREAM) {
+            BufferPool pool = BufferPool.shared();
+            ByteBuffer buffer = pool.acquire();
+            try {
+                while (toWrite > 0) {
+                    buffer.clear().limit((int) Math.min(toWrite, buffer.capacity()));
+                    long start = Metrics.now(metrics);
+                    int readBytes = in.read(buffer);
+                    Metrics.read(metrics, start);
+                    if (readBytes < 0) {
+                        throw new EOFException("Unexpected end of file, " + toWrite + " bytes missing");
+                    }
+                    buffer.flip();
+                    update(checksum, buffer);
+                    start = Metrics.now(metrics);
+                    while (buffer.hasRemaining()) {
+                        writePosition += out.write(buffer, writePosition);
+                    }
+                    Metrics.wrote(metrics, start);
+                    Metrics.addBytes(metrics, readBytes);
+                    toWrite -= readBytes;
+                }
+            } finally {
+                pool.release(buffer);
+            }
+        } else if (checksum != null) {
+            long readPosition = in.position();
+            while (toWrite > 0) {
+                ByteBuffer mapped = map(in, readPosition, toWrite);
+                long start = Metrics.now(metrics);
+                update(checksum, mapped);
+                Metrics.read(metrics, start);
+                start = Metrics.now(metrics);
+                while (mapped.hasRemaining()) {
+                    writePosition += out.write(mapped, writePosition);
+                }
+                Metrics.wrote(metrics, start);
+                Metrics.addBytes(metrics, mapped.limit());
+                readPosition += mapped.limit();
+                toWrite -= mapped.limit();
+            }
+            in.position(readPosition);
+        } else {
+            while (toWrite > 0) {
+                long start = Metrics.now(metrics);
+                long written = out.transferFrom(in, writePosition, toWrite);
+                Metrics.transferred(metrics, start);
+                Metrics.addBytes(metrics, Math.max(written, 0));
+                if (written <= 0) {
+                    throw new EOFException("Unexpected end of file, " + toWrite + " bytes missing");
+                }
+                writePosition += written;
+                toWrite -= written;
+            }
+        }
+    }
+
+    public static void copyStream(InputStream in, OutputStream out, long count) throws IOException {
+        copyStream(in, out, count, null, null);
+    }
+
+    // Fallback for sources that are not backed by a file. Streams need a heap array,
+    // it is sized to the entry and never larger than the pooled buffers.
+    // Time spent in a compressing out or a decompressing in counts as blocked on it
+    public static void copyStream(InputStream in, OutputStream out, long count, Checksum checksum,
+            Metrics metrics) throws IOException {
+        long toRead = count;
+        // How many bytes was read
+        int readBytes;
+        byte[] buffer = new byte[(int) Math.min(count, BufferPool.shared().bufferSize())];
+        while (toRead > 0) {
+            long start = Metrics.now(metrics);
+            readBytes = in.read(buffer, 0, (int) Math.min(toRead, buffer.length));
+            Metrics.read(metrics, start);
+            if (readBytes < 0) {
+                throw new EOFException("Unexpected end of file, " + toRead + " bytes missing");
+            }
+            if (checksum != null) {
+                checksum.update(buffer, 0, readBytes);
+            }
+            start = Metrics.now(metrics);
+            out.write(buffer, 0, readBytes);
+            Metrics.wrote(metrics, start);
+            Metrics.addBytes(metrics, readBytes);
+            toRead -= readBytes;
+        }
+    }
+
+    // Update the checksum with every byte of the channel in [position, position + count)
+    // without writing them anywhere
+    public static void checksum(FileChannel in, long position, long count, Checksum checksum, Metrics metrics)
+            throws IOException {
+        long toRead = count;
+        long readPosition = position;
+        while (toRead > 0) {
+            ByteBuffer mapped = map(in, readPosition, toRead);
+            long start = Metrics.now(metrics);
+            checksum.update(mapped);
+            Metrics.read(metrics, start);
+            Metrics.addBytes(metrics, mapped.limit());
+            readPosition += mapped.limit();
+            toRead -= mapped.limit();
+        }
+    }
+
+    private void transfer(FileChannel in, FileChannel out, long count, Checksum checksum, Metrics metrics)
+            throws IOException {
+        // transferTo does not move the position of in, so advance it by hand
+        long position = in.position();
+        copyFrom(in, position, out, count, checksum, metrics);
+        in.position(position + count);
+    }
+
+    // Map the next piece of [position, position + remaining) of the channel, at most Constants.max_buffer_size long
+    private static ByteBuffer map(FileChannel in, long position, long remaining) throws IOException {
+        long length = Math.min(remaining, Constants.max_buffer_size);
+        if (position > in.size() - length) {
+            throw new EOFException("Unexpected end of file, " + remaining + " bytes missing");
+        }
+        return in.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    // Update the checksum with the remaining bytes of the buffer, leaving its position where it was
+    private static void update(Checksum checksum, ByteBuffer buffer) {
+        if (checksum != null) {
+            checksum.update(buffer.duplicate());
+        }
+    }
+}
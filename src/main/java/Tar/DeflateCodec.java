@@ -0,0 +1,66 @@
+package Tar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Deflate from java.util.zip, in the zlib format
+public class DeflateCodec implements Codec {
+    public static final int id = 1;
+    private static final int bufferSize = 64 * 1024;
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public int id() {
+        return id;
+    }
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        Deflater deflater = new Deflater(level);
+        // A deflater passed in by the caller is not released by the stream, so it is ended on close
+        return new DeflaterOutputStream(out, deflater, bufferSize) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, bufferSize) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    private final int level;
+}
@@ -0,0 +1,46 @@
+package Tar;
+
+// One file stored in an archive
+class Entry {
+    public String name;
+    // File size in bytes
+    public long size;
+    // Absolute offset of the file's contents in the archive, or in its volume
+    public long offset;
+    // Volume of a split archive the contents are in, 0 if they are in the archive file itself, see Volumes
+    public int volume;
+    // Bit set of FormatV2.FLAG_* values
+    public int flags;
+    // Id of the codec the contents are compressed with, see Codecs
+    public int codec = Codecs.stored;
+    // Number of bytes the contents take in the archive, equal to size unless they are compressed
+    public long storedSize;
+    // Size of the independently compressed blocks the contents are split into, 0 if they are not split
+    public int blockSize;
+    // Stored length of every block, see Blocks
+    public int[] blockLengths;
+    // Absolute offset and length of every range of the archive the contents are made of, null if they are
+    // stored in one piece. Deduplicated entries point to chunks stored with earlier entries this way
+    public long[] chunkOffsets;
+    public long[] chunkLengths;
+    // Volume of every chunk, null if the chunks are in the archive file. A file larger than a volume
+    // is stored as chunks in consecutive volumes, the first one starting at offset in volume
+    public int[] chunkVolumes;
+    // Offset in the file and length of every data region of a sparse file, null if the file has no holes.
+    // Only the regions are stored, one after another, everything between them reads as zeros
+    public long[] dataOffsets;
+    public long[] dataLengths;
+    // CRC32C of the contents, FormatV2.noChecksum if the archive does not have one
+    public long checksum = FormatV2.noChecksum;
+
+    public Entry(String name, long size) {
+        this.name = name;
+        this.size = size;
+        this.storedSize = size;
+    }
+
+    public Entry(String name, long size, long offset) {
+        this(name, size);
+        this.offset = offset;
+    }
+}
@@ -0,0 +1,29 @@
+package Tar;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight recorder event for every entry that is archived, extracted or verified. It spans the copy of the
+// contents into or out of the archive. Compressed and deduplicated entries are prepared on the workers
+// before that, so for them it spans the write of the prepared contents
+@Name("tar.Entry")
+@Label("Archive Entry")
+@Category("Tar")
+@Description("One entry archived, extracted or verified")
+@StackTrace(false)
+class EntryEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Name")
+    String name;
+
+    @Label("Size")
+    @DataAmount
+    long size;
+}
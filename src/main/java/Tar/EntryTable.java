@@ -0,0 +1,254 @@
+package Tar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+// Entries of an archive kept in columns: the names in Names, sizes, offsets and checksums in long arrays.
+// Most entries are files stored as they are, which the columns describe completely. The others
+// (compressed, deduplicated, sparse or in a volume) also have a detail record: a run of ints in intPool
+// and a run of longs in longPool, see addDetails.
+// The table is not a list of Entry objects. Columns are read with the accessors, and entry builds a new Entry
+// from a row for code that works on entries. The table does not keep that Entry, so changing it does not
+// change the table; rows only change through setOffset
+class EntryTable {
+    EntryTable() {
+        this(16);
+    }
+
+    EntryTable(int capacity) {
+        names = new Names(capacity);
+        sizes = new long[Math.max(capacity, 1)];
+        offsets = new long[sizes.length];
+        checksums = new long[sizes.length];
+        details = new int[sizes.length];
+    }
+
+    void add(Entry entry) {
+        int index = names.size();
+        if (index == sizes.length) {
+            int length = grow(index, index + 1);
+            sizes = Arrays.copyOf(sizes, length);
+            offsets = Arrays.copyOf(offsets, length);
+            checksums = Arrays.copyOf(checksums, length);
+            details = Arrays.copyOf(details, length);
+        }
+        names.add(entry.name);
+        sizes[index] = entry.size;
+        offsets[index] = entry.offset;
+        checksums[index] = entry.checksum;
+        details[index] = isPlain(entry) ? plain : addDetails(entry);
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    // New Entry with the columns and details of the row, see the class comment
+    Entry entry(int index) {
+        Objects.checkIndex(index, size());
+        Entry entry = new Entry(names.get(index), sizes[index], offsets[index]);
+        entry.checksum = checksums[index];
+        if (details[index] != plain) {
+            readDetails(details[index], entry);
+        }
+        return entry;
+    }
+
+    // New Entry objects for all rows, in archive order
+    List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            entries.add(entry(i));
+        }
+        return entries;
+    }
+
+    String name(int index) {
+        return names.get(index);
+    }
+
+    long sizeOf(int index) {
+        Objects.checkIndex(index, size());
+        return sizes[index];
+    }
+
+    long offsetOf(int index) {
+        Objects.checkIndex(index, size());
+        return offsets[index];
+    }
+
+    long checksumOf(int index) {
+        Objects.checkIndex(index, size());
+        return checksums[index];
+    }
+
+    // Volume the entry starts in, 0 if it is in the archive file
+    int volumeOf(int index) {
+        Objects.checkIndex(index, size());
+        return details[index] == plain ? 0 : intPool[details[index] + 2];
+    }
+
+    // Size of the blocks the entry is split into, 0 if it is not split
+    int blockSizeOf(int index) {
+        Objects.checkIndex(index, size());
+        return details[index] == plain ? 0 : intPool[details[index] + 4];
+    }
+
+    void setOffset(int index, long offset) {
+        Objects.checkIndex(index, size());
+        offsets[index] = offset;
+    }
+
+    // Index of the first entry with this name, -1 if there is none
+    int find(String name) {
+        return names.indexOf(name);
+    }
+
+    List<String> names() {
+        return Collections.unmodifiableList(names);
+    }
+
+    // Heap the columns and pools take, see Names.heapBytes
+    long heapBytes() {
+        return names.heapBytes() + 3L * Long.BYTES * sizes.length + (long) Integer.BYTES * details.length
+                + (long) Integer.BYTES * intPool.length + (long) Long.BYTES * longPool.length;
+    }
+
+    private static boolean isPlain(Entry entry) {
+        return entry.flags == 0 && entry.volume == 0 && entry.codec == Codecs.stored && entry.blockSize == 0
+                && entry.storedSize == entry.size && entry.blockLengths == null && entry.chunkOffsets == null
+                && entry.dataOffsets == null;
+    }
+
+    // The ints of a detail record are the start of its longs, flags, volume, codec, block size, the lengths
+    // of the four arrays (-1 for null) and then blockLengths and chunkVolumes. The longs are the stored size,
+    // chunkOffsets, chunkLengths, dataOffsets and dataLengths. Returns the start of the ints
+    private int addDetails(Entry entry) {
+        int blockCount = length(entry.blockLengths);
+        int chunkCount = length(entry.chunkOffsets);
+        int chunkVolumeCount = length(entry.chunkVolumes);
+        int regionCount = length(entry.dataOffsets);
+        int start = reserveInts(detailHeaderSize + Math.max(blockCount, 0) + Math.max(chunkVolumeCount, 0));
+        int longStart = reserveLongs(1 + 2L * Math.max(chunkCount, 0) + 2L * Math.max(regionCount, 0));
+        int[] header = { longStart, entry.flags, entry.volume, entry.codec, entry.blockSize,
+                blockCount, chunkCount, chunkVolumeCount, regionCount };
+        System.arraycopy(header, 0, intPool, start, detailHeaderSize);
+        int next = start + detailHeaderSize;
+        next = put(entry.blockLengths, intPool, next);
+        put(entry.chunkVolumes, intPool, next);
+
+        longPool[longStart] = entry.storedSize;
+        int nextLong = longStart + 1;
+        nextLong = put(entry.chunkOffsets, longPool, nextLong);
+        nextLong = put(entry.chunkLengths, longPool, nextLong);
+        nextLong = put(entry.dataOffsets, longPool, nextLong);
+        put(entry.dataLengths, longPool, nextLong);
+        return start;
+    }
+
+    private void readDetails(int start, Entry entry) {
+        int longStart = intPool[start];
+        entry.flags = intPool[start + 1];
+        entry.volume = intPool[start + 2];
+        entry.codec = intPool[start + 3];
+        entry.blockSize = intPool[start + 4];
+        int blockCount = intPool[start + 5];
+        int chunkCount = intPool[start + 6];
+        int chunkVolumeCount = intPool[start + 7];
+        int regionCount = intPool[start + 8];
+        int next = start + detailHeaderSize;
+        entry.blockLengths = ints(next, blockCount);
+        next += Math.max(blockCount, 0);
+        entry.chunkVolumes = ints(next, chunkVolumeCount);
+
+        entry.storedSize = longPool[longStart];
+        int nextLong = longStart + 1;
+        entry.chunkOffsets = longs(nextLong, chunkCount);
+        nextLong += Math.max(chunkCount, 0);
+        entry.chunkLengths = longs(nextLong, chunkCount);
+        nextLong += Math.max(chunkCount, 0);
+        entry.dataOffsets = longs(nextLong, regionCount);
+        nextLong += Math.max(regionCount, 0);
+        entry.dataLengths = longs(nextLong, regionCount);
+    }
+
+    private int reserveInts(int count) {
+        int start = intCount;
+        if (count > maxArraySize - start) {
+            throw new IllegalStateException("Entry details take more than " + maxArraySize + " ints");
+        }
+        if (start + count > intPool.length) {
+            intPool = Arrays.copyOf(intPool, grow(intPool.length, start + count));
+        }
+        intCount += count;
+        return start;
+    }
+
+    private int reserveLongs(long count) {
+        int start = longCount;
+        if (count > maxArraySize - start) {
+            throw new IllegalStateException("Entry details take more than " + maxArraySize + " longs");
+        }
+        if (start + count > longPool.length) {
+            longPool = Arrays.copyOf(longPool, grow(longPool.length, (int) (start + count)));
+        }
+        longCount += (int) count;
+        return start;
+    }
+
+    private static int length(int[] array) {
+        return array == null ? -1 : array.length;
+    }
+
+    private static int length(long[] array) {
+        return array == null ? -1 : array.length;
+    }
+
+    private static int put(int[] array, int[] pool, int start) {
+        if (array == null) {
+            return start;
+        }
+        System.arraycopy(array, 0, pool, start, array.length);
+        return start + array.length;
+    }
+
+    private static int put(long[] array, long[] pool, int start) {
+        if (array == null) {
+            return start;
+        }
+        System.arraycopy(array, 0, pool, start, array.length);
+        return start + array.length;
+    }
+
+    private int[] ints(int start, int count) {
+        return count < 0 ? null : Arrays.copyOfRange(intPool, start, start + count);
+    }
+
+    private long[] longs(int start, int count) {
+        return count < 0 ? null : Arrays.copyOfRange(longPool, start, start + count);
+    }
+
+    private static int grow(int length, int needed) {
+        return Math.min(Math.max(needed, length + Math.max(length >> 1, 1)), maxArraySize);
+    }
+
+    // Largest array the JVM reliably allocates
+    private static final int maxArraySize = Integer.MAX_VALUE - 8;
+    private static final int detailHeaderSize = 9;
+    // Value of details for rows the columns describe completely
+    private static final int plain = -1;
+
+    private final Names names;
+    private long[] sizes;
+    private long[] offsets;
+    private long[] checksums;
+    // Start of the detail record of every row in intPool, or plain
+    private int[] details;
+    private int[] intPool = new int[0];
+    private int intCount = 0;
+    private long[] longPool = new long[0];
+    private int longCount = 0;
+}
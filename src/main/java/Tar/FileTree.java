@@ -0,0 +1,144 @@
+package Tar;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+// Collects every regular file below a directory with a fork-join walk over its subtrees.
+// Each file costs one attribute read, which brings its type and size together.
+// Symbolic links to directories are not followed, so the walk cannot loop
+class FileTree {
+    // A regular file found by the walk
+    static class Found {
+        Found(String path, String name, long size) {
+            this.path = path;
+            this.name = name;
+            this.size = size;
+        }
+
+        public final String path;
+        // Path below the walked directory with '/' between directories, starting with the directory's name
+        public final String name;
+        public final long size;
+    }
+
+    // Files below root, ordered by name at every level of the tree.
+    // Directories that cannot be read fail the walk with an UncheckedIOException
+    static List<Found> walk(Path root, String rootName) {
+        return new DirectoryWalk(root, rootName + "/").invoke();
+    }
+
+    // Lists one directory, then walks its children
+    private static class DirectoryWalk extends RecursiveTask<List<Found>> {
+        DirectoryWalk(Path directory, String prefix) {
+            this.directory = directory;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<Found> compute() {
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                stream.forEach(children::add);
+            } catch (IOException ioEx) {
+                throw new UncheckedIOException(ioEx);
+            }
+            // Directory order depends on the file system, names keep archives reproducible
+            children.sort(Comparator.comparing(child -> child.getFileName().toString()));
+            return new ChildrenWalk(children, 0, children.size(), prefix).compute();
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final String prefix;
+    }
+
+    // Walks children [from, to) of one directory, large directories are split and walked in parallel
+    private static class ChildrenWalk extends RecursiveTask<List<Found>> {
+        ChildrenWalk(List<Path> children, int from, int to, String prefix) {
+            this.children = children;
+            this.from = from;
+            this.to = to;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<Found> compute() {
+            if (to - from > splitSize) {
+                int middle = (from + to) >>> 1;
+                ChildrenWalk firstHalf = new ChildrenWalk(children, from, middle, prefix);
+                firstHalf.fork();
+                List<Found> secondHalf = new ChildrenWalk(children, middle, to, prefix).compute();
+                List<Found> found = firstHalf.join();
+                found.addAll(secondHalf);
+                return found;
+            }
+
+            // Files of this range, subdirectories are walked on their own tasks and spliced in afterwards
+            List<Found> files = new ArrayList<>();
+            List<DirectoryWalk> subtrees = new ArrayList<>();
+            List<Integer> subtreePositions = new ArrayList<>();
+            for (Path child : children.subList(from, to)) {
+                String name = prefix + child.getFileName().toString();
+                BasicFileAttributes attributes = readAttributes(child);
+                if (attributes.isDirectory()) {
+                    DirectoryWalk subtree = new DirectoryWalk(child, name + "/");
+                    subtree.fork();
+                    subtrees.add(subtree);
+                    subtreePositions.add(files.size());
+                } else if (attributes.isRegularFile()) {
+                    files.add(new Found(child.toString(), name, attributes.size()));
+                }
+            }
+
+            List<Found> found = new ArrayList<>(files.size());
+            int next = 0;
+            for (int i = 0; i < subtrees.size(); i++) {
+                found.addAll(files.subList(next, subtreePositions.get(i)));
+                found.addAll(subtrees.get(i).join());
+                next = subtreePositions.get(i);
+            }
+            found.addAll(files.subList(next, files.size()));
+            return found;
+        }
+
+        // Attributes of the file a link points to. Links to directories and broken links
+        // count as neither file nor directory and are skipped
+        private static BasicFileAttributes readAttributes(Path child) {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException ioEx) {
+                throw new UncheckedIOException(ioEx);
+            }
+            if (attributes.isSymbolicLink()) {
+                try {
+                    BasicFileAttributes target = Files.readAttributes(child, BasicFileAttributes.class);
+                    return target.isDirectory() ? attributes : target;
+                } catch (IOException ioEx) {
+                    return attributes;
+                }
+            }
+            return attributes;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> children;
+        private final int from;
+        private final int to;
+        private final String prefix;
+    }
+
+    // Directories with more children than this are split between tasks
+    private static final int splitSize = 256;
+}
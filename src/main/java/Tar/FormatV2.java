@@ -0,0 +1,432 @@
+package Tar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+// Binary archive format, version 2.
+//
+//   preamble    magic "TARC", version byte, 3 reserved bytes
+//   entries     for every file: 'E', entry record without offset, then the file contents
+//   index       'I', entry count (int), entry record with offset for every file
+//   trailer     offset of the index (long), then the preamble again
+//
+// An entry record is: name length (unsigned short), UTF-8 name, flags (int), size (long),
+// offset (long, index only), field count (unsigned short) and tagged fields: tag (unsigned short),
+// length (int), value. Readers skip fields with unknown tags, so new per-entry data can be added
+// without a new version. All numbers are big-endian.
+//
+// The index sits at the end, so a writer can stream contents without knowing them in advance and
+// a reader can find every entry with two reads. The local record in front of every file lets a
+// reader that cannot seek (StreamArchive) walk the archive front to back.
+class FormatV2 {
+    public static final int version = 2;
+    public static final int preambleSize = 8;
+    public static final int trailerSize = 8 + preambleSize;
+
+    public static final byte entryTag = 'E';
+    public static final byte indexTag = 'I';
+
+    // Tagged fields of an entry record
+    // Codec id (unsigned byte) and the number of bytes the compressed contents take (long)
+    public static final int codecField = 1;
+    // Block size (int), block count (int) and the stored length of every block (int each), see Blocks.
+    // The record in front of the contents only has the block size, the lengths are known after writing them
+    public static final int blocksField = 2;
+    // Stored size (long) and chunk count (int), then the absolute offset (long) and length (long)
+    // of every chunk of a deduplicated entry
+    public static final int chunksField = 3;
+    // CRC32C of the contents (unsigned int). Only the index has it, it is known after the contents are written
+    public static final int checksumField = 4;
+    // Region count (int), then the offset in the file (long) and length (long) of every data region
+    // of a sparse entry, in file order. The stored size is their total length
+    public static final int sparseField = 5;
+    // Number of the volume the contents are in (int), see Volumes. Only the index has it,
+    // the offset of the entry is then an offset in that volume
+    public static final int volumeField = 6;
+    // Chunk count (int), then the volume (int) of every chunk of the chunks field. Only the index has it,
+    // the offsets of the chunks are then offsets in their volumes
+    public static final int chunkVolumesField = 7;
+
+    // Stored size in the record in front of contents that are written before their size is known
+    public static final long unknownSize = -1;
+    // Checksum of entries written without one
+    public static final long noChecksum = -1;
+
+    private static final byte[] magic = { 'T', 'A', 'R', 'C' };
+
+    // Check if the first bytes of a file belong to a version 2 (or newer) archive
+    static boolean isV2(byte[] start) {
+        return start.length >= magic.length && Arrays.equals(start, 0, magic.length, magic, 0, magic.length);
+    }
+
+    static byte[] preamble() {
+        byte[] preamble = Arrays.copyOf(magic, preambleSize);
+        preamble[magic.length] = version;
+        return preamble;
+    }
+
+    // Validate the preamble read from the start or the end of the archive
+    static void checkPreamble(byte[] preamble, String filename) throws IOException {
+        if (!isV2(preamble)) {
+            throw new IOException("Invalid header in file" + filename);
+        } else if (preamble[magic.length] != version) {
+            throw new IOException("Unsupported archive version " + preamble[magic.length] + " in file" + filename);
+        }
+    }
+
+    // Record written in front of the file contents
+    static byte[] localHeader(Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(entryTag);
+            writeRecord(out, entry, false);
+        } catch (IOException ioEx) {
+            // Writing to memory does not fail
+            throw new UncheckedIOException(ioEx);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] index(List<Entry> entries) {
+        return index(entries.size(), entries::get);
+    }
+
+    // Rows of the table are built one at a time while they are written
+    static byte[] index(EntryTable entries) {
+        return index(entries.size(), entries::entry);
+    }
+
+    private static byte[] index(int count, IntFunction<Entry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(indexTag);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                writeRecord(out, entries.apply(i), true);
+            }
+        } catch (IOException ioEx) {
+            throw new UncheckedIOException(ioEx);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] trailer(long indexOffset) {
+        return ByteBuffer.allocate(trailerSize).putLong(indexOffset).put(preamble()).array();
+    }
+
+    // Offset of the index of a version 2 archive, -1 if the file is not one
+    static long findIndex(FileChannel channel, String filename) throws IOException {
+        long archiveSize = channel.size();
+        if (archiveSize < preambleSize + trailerSize || !isV2(readAt(channel, 0, preambleSize, filename))) {
+            return -1;
+        }
+        checkPreamble(readAt(channel, 0, preambleSize, filename), filename);
+        return indexOffset(readAt(channel, archiveSize - trailerSize, trailerSize, filename), archiveSize, filename);
+    }
+
+    // Offset of the index, read from the trailer at the end of the archive
+    static long indexOffset(byte[] trailer, long archiveSize, String filename) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(trailer);
+        long indexOffset = buffer.getLong();
+        byte[] preamble = new byte[preambleSize];
+        buffer.get(preamble);
+        checkPreamble(preamble, filename);
+        if (indexOffset < preambleSize || indexOffset > archiveSize - trailerSize) {
+            throw new IOException("Invalid index in file" + filename);
+        }
+        return indexOffset;
+    }
+
+    // Read the index starting at its tag. Contents of every entry have to end before contentsEnd
+    static EntryTable readIndex(InputStream stream, long contentsEnd, String filename) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            if (in.readByte() != indexTag) {
+                throw new IOException("Invalid index in file" + filename);
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid index in file" + filename);
+            }
+            EntryTable entries = new EntryTable(Math.min(count, 1 << 16));
+            for (int i = 0; i < count; i++) {
+                Entry entry = readRecord(in, true, filename);
+                // Contents in a volume are checked against its size once it is opened
+                if (entry.volume == 0 && entry.offset > contentsEnd - entry.storedSize) {
+                    throw new IOException("Invalid index in file" + filename);
+                }
+                for (int j = 0; entry.chunkOffsets != null && entry.chunkVolumes == null
+                        && j < entry.chunkOffsets.length; j++) {
+                    if (entry.chunkOffsets[j] > contentsEnd - entry.chunkLengths[j]) {
+                        throw new IOException("Invalid index in file" + filename);
+                    }
+                }
+                entries.add(entry);
+            }
+            return entries;
+        } catch (EOFException eofEx) {
+            throw new IOException("Invalid index in file" + filename);
+        }
+    }
+
+    // Read the record in front of the file contents, the entry tag has already been consumed
+    static Entry readLocalHeader(InputStream stream, String filename) throws IOException {
+        try {
+            return readRecord(new DataInputStream(stream), false, filename);
+        } catch (EOFException eofEx) {
+            throw new IOException("Invalid header in file" + filename);
+        }
+    }
+
+    // Chunks of a deduplicated entry have to add up to its size, they are stored uncompressed
+    private static void checkChunks(Entry entry, String filename) throws IOException {
+        long total = 0;
+        for (int i = 0; i < entry.chunkOffsets.length; i++) {
+            if (entry.chunkOffsets[i] < 0 || entry.chunkLengths[i] < 0) {
+                throw new IOException("Invalid index in file" + filename);
+            }
+            total += entry.chunkLengths[i];
+        }
+        if (total != entry.size || entry.codec != Codecs.stored || entry.blockSize > 0 || entry.storedSize < 0) {
+            throw new IOException("Invalid index in file" + filename);
+        }
+    }
+
+    // Every chunk of an entry that spans volumes is in a volume, the first one where the entry starts
+    private static void checkChunkVolumes(Entry entry, String filename) throws IOException {
+        if (entry.chunkOffsets == null || entry.chunkVolumes.length != entry.chunkOffsets.length
+                || entry.chunkVolumes.length == 0 || entry.chunkVolumes[0] != entry.volume
+                || entry.chunkOffsets[0] != entry.offset) {
+            throw new IOException("Invalid index in file" + filename);
+        }
+        for (int volume : entry.chunkVolumes) {
+            if (volume <= 0) {
+                throw new IOException("Invalid index in file" + filename);
+            }
+        }
+    }
+
+    // Data regions of a sparse entry have to be in order, not overlapping and inside the file.
+    // They are stored uncompressed and in one piece
+    private static void checkSparse(Entry entry, String filename) throws IOException {
+        long end = 0;
+        long total = 0;
+        for (int i = 0; i < entry.dataOffsets.length; i++) {
+            if (entry.dataOffsets[i] < end || entry.dataLengths[i] <= 0
+                    || entry.dataLengths[i] > entry.size - entry.dataOffsets[i]) {
+                throw new IOException("Invalid index in file" + filename);
+            }
+            end = entry.dataOffsets[i] + entry.dataLengths[i];
+            total += entry.dataLengths[i];
+        }
+        if (entry.codec != Codecs.stored || entry.blockSize > 0 || entry.chunkOffsets != null) {
+            throw new IOException("Invalid index in file" + filename);
+        }
+        entry.storedSize = total;
+    }
+
+    // Split entries have to list exactly the blocks their size needs, except in the record in front
+    // of the contents, which is written before the blocks are
+    private static void checkBlocks(Entry entry, boolean withOffset, String filename) throws IOException {
+        if (entry.codec == Codecs.stored) {
+            throw new IOException("Invalid index in file" + filename);
+        }
+        if (!withOffset) {
+            entry.blockLengths = null;
+            return;
+        }
+        if (entry.blockLengths.length != Blocks.blockCount(entry.size, entry.blockSize) ||
+                entry.storedSize != Blocks.storedSize(entry.blockLengths)) {
+            throw new IOException("Invalid index in file" + filename);
+        }
+    }
+
+    // Read length bytes at position of the channel without moving it
+    static byte[] readAt(FileChannel channel, long position, int length, String filename) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file " + filename + ", " + buffer.remaining()
+                        + " bytes missing");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static void writeRecord(DataOutputStream out, Entry entry, boolean withOffset) throws IOException {
+        byte[] name = entry.name.getBytes(Constants.headerEncoding);
+        if (name.length > 0xFFFF) {
+            throw new IllegalArgumentException("Filename " + entry.name + " is too long");
+        }
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeInt(entry.flags);
+        out.writeLong(entry.size);
+        if (withOffset) {
+            out.writeLong(entry.offset);
+        }
+        // Fields are only written when they differ from their default
+        int fieldCount = (entry.codec != Codecs.stored ? 1 : 0) + (entry.blockSize > 0 ? 1 : 0)
+                + (entry.chunkOffsets != null ? 1 : 0) + (entry.dataOffsets != null ? 1 : 0)
+                + (withOffset && entry.checksum != noChecksum ? 1 : 0) + (withOffset && entry.volume > 0 ? 1 : 0)
+                + (withOffset && entry.chunkVolumes != null ? 1 : 0);
+        out.writeShort(fieldCount);
+        if (entry.codec != Codecs.stored) {
+            out.writeShort(codecField);
+            out.writeInt(1 + 8);
+            out.writeByte(entry.codec);
+            out.writeLong(entry.storedSize);
+        }
+        if (entry.blockSize > 0) {
+            int blockCount = entry.blockLengths == null ? 0 : entry.blockLengths.length;
+            out.writeShort(blocksField);
+            out.writeInt(4 + 4 + 4 * blockCount);
+            out.writeInt(entry.blockSize);
+            out.writeInt(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                out.writeInt(entry.blockLengths[i]);
+            }
+        }
+        if (entry.chunkOffsets != null) {
+            out.writeShort(chunksField);
+            out.writeInt(8 + 4 + 16 * entry.chunkOffsets.length);
+            out.writeLong(entry.storedSize);
+            out.writeInt(entry.chunkOffsets.length);
+            for (int i = 0; i < entry.chunkOffsets.length; i++) {
+                out.writeLong(entry.chunkOffsets[i]);
+                out.writeLong(entry.chunkLengths[i]);
+            }
+        }
+        if (entry.dataOffsets != null) {
+            out.writeShort(sparseField);
+            out.writeInt(4 + 16 * entry.dataOffsets.length);
+            out.writeInt(entry.dataOffsets.length);
+            for (int i = 0; i < entry.dataOffsets.length; i++) {
+                out.writeLong(entry.dataOffsets[i]);
+                out.writeLong(entry.dataLengths[i]);
+            }
+        }
+        if (withOffset && entry.checksum != noChecksum) {
+            out.writeShort(checksumField);
+            out.writeInt(4);
+            out.writeInt((int) entry.checksum);
+        }
+        if (withOffset && entry.volume > 0) {
+            out.writeShort(volumeField);
+            out.writeInt(4);
+            out.writeInt(entry.volume);
+        }
+        if (withOffset && entry.chunkVolumes != null) {
+            out.writeShort(chunkVolumesField);
+            out.writeInt(4 + 4 * entry.chunkVolumes.length);
+            out.writeInt(entry.chunkVolumes.length);
+            for (int volume : entry.chunkVolumes) {
+                out.writeInt(volume);
+            }
+        }
+    }
+
+    private static Entry readRecord(DataInputStream in, boolean withOffset, String filename) throws IOException {
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        Entry entry = new Entry(new String(name, Constants.headerEncoding), 0);
+        entry.flags = in.readInt();
+        entry.size = in.readLong();
+        if (withOffset) {
+            entry.offset = in.readLong();
+        }
+        entry.storedSize = entry.size;
+        int fieldCount = in.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            int tag = in.readUnsignedShort();
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid index in file" + filename);
+            }
+            if (tag == codecField && length == 1 + 8) {
+                entry.codec = in.readUnsignedByte();
+                entry.storedSize = in.readLong();
+            } else if (tag == blocksField && length >= 8) {
+                entry.blockSize = in.readInt();
+                int blockCount = in.readInt();
+                if (entry.blockSize <= 0 || blockCount < 0 || length != 8 + 4L * blockCount) {
+                    throw new IOException("Invalid index in file" + filename);
+                }
+                entry.blockLengths = new int[blockCount];
+                for (int j = 0; j < blockCount; j++) {
+                    entry.blockLengths[j] = in.readInt();
+                }
+            } else if (tag == chunksField && length >= 8 + 4) {
+                entry.storedSize = in.readLong();
+                int chunkCount = in.readInt();
+                if (chunkCount < 0 || length != 8 + 4 + 16L * chunkCount) {
+                    throw new IOException("Invalid index in file" + filename);
+                }
+                entry.chunkOffsets = new long[chunkCount];
+                entry.chunkLengths = new long[chunkCount];
+                for (int j = 0; j < chunkCount; j++) {
+                    entry.chunkOffsets[j] = in.readLong();
+                    entry.chunkLengths[j] = in.readLong();
+                }
+            } else if (tag == sparseField && length >= 4) {
+                int regionCount = in.readInt();
+                if (regionCount < 0 || length != 4 + 16L * regionCount) {
+                    throw new IOException("Invalid index in file" + filename);
+                }
+                entry.dataOffsets = new long[regionCount];
+                entry.dataLengths = new long[regionCount];
+                for (int j = 0; j < regionCount; j++) {
+                    entry.dataOffsets[j] = in.readLong();
+                    entry.dataLengths[j] = in.readLong();
+                }
+            } else if (tag == checksumField && length == 4) {
+                entry.checksum = Integer.toUnsignedLong(in.readInt());
+            } else if (tag == volumeField && length == 4) {
+                entry.volume = in.readInt();
+            } else if (tag == chunkVolumesField && length >= 4) {
+                int chunkCount = in.readInt();
+                if (chunkCount < 0 || length != 4 + 4L * chunkCount) {
+                    throw new IOException("Invalid index in file" + filename);
+                }
+                entry.chunkVolumes = new int[chunkCount];
+                for (int j = 0; j < chunkCount; j++) {
+                    entry.chunkVolumes[j] = in.readInt();
+                }
+            } else {
+                // Written by a newer version, not needed to read the entry. The length comes from the file,
+                // so the field is skipped rather than read into an array of that size
+                in.skipNBytes(length);
+            }
+        }
+        if (entry.name.isEmpty() || !Archive.checkFilename(entry.name) || entry.size < 0 || entry.offset < 0) {
+            throw new IOException("Invalid header in file" + filename);
+        }
+        // Chunks of an entry in a volume are in volumes too, the first one in the entry's
+        if (entry.volume < 0 || (entry.volume > 0 && entry.chunkOffsets != null && entry.chunkVolumes == null)) {
+            throw new IOException("Invalid index in file" + filename);
+        }
+        if (entry.chunkVolumes != null) {
+            checkChunkVolumes(entry, filename);
+        }
+        if (entry.dataOffsets != null) {
+            checkSparse(entry, filename);
+        } else if (entry.chunkOffsets != null) {
+            checkChunks(entry, filename);
+        } else if (entry.blockSize > 0) {
+            checkBlocks(entry, withOffset, filename);
+        } else if (entry.storedSize < 0) {
+            throw new IOException("Invalid header in file" + filename);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,115 @@
+package Tar;
+
+import java.io.IOException;
+
+// Single pass parser for the text header, works on the raw header bytes.
+// Every line is "name [size]", the name is everything before the last whitespace followed by '['
+class HeaderParser {
+    // Characters that are not allowed in a filename on Windows, except '/' which separates directories in names.
+    // All of them are ASCII, and ASCII bytes never occur inside a multi-byte UTF-8 sequence,
+    // so names can be checked byte by byte before they are decoded
+    private static final boolean[] excludedChars = new boolean[128];
+
+    static {
+        for (char c : new char[] { '\n', '\r', '\t', '\0',
+                '\f', '`', '?', '*', '\\', '<', '>', '|', '\"', ':' }) {
+            excludedChars[c] = true;
+        }
+    }
+
+    static boolean isExcluded(int c) {
+        return c >= 0 && c < excludedChars.length && excludedChars[c];
+    }
+
+    // Check the name in [start, end): a relative path of one or more names separated by '/',
+    // none of them empty, "." or "..", so an entry can never be written outside the target directory
+    static boolean checkName(byte[] name, int start, int end) {
+        int segmentStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || name[i] == '/') {
+                int length = i - segmentStart;
+                if (length == 0 || (name[segmentStart] == '.' && (length == 1
+                        || (length == 2 && name[segmentStart + 1] == '.')))) {
+                    return false;
+                }
+                segmentStart = i + 1;
+            } else if (isExcluded(name[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parse every line of the header, the last line may or may not end with '\n'
+    static EntryTable parseEntries(byte[] header, String filename) throws IOException {
+        EntryTable entries = new EntryTable();
+        int lineStart = 0;
+        while (lineStart < header.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < header.length && header[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int nameEnd = nameEnd(header, lineStart, lineEnd, filename);
+            long size = parseSize(header, nameEnd + 2, lineEnd - 1, filename);
+            if (!checkName(header, lineStart, nameEnd)) {
+                throw invalidHeader(filename);
+            }
+            entries.add(new Entry(new String(header, lineStart, nameEnd - lineStart, Constants.headerEncoding), size));
+            lineStart = lineEnd + 1;
+        }
+        return entries;
+    }
+
+    // Parse the first line of the archive, "header [size]", and return the size of the rest of the header
+    static long parseHeaderLine(byte[] line, int length, String filename) throws IOException {
+        int nameEnd = nameEnd(line, 0, length, filename);
+        if (nameEnd != headerName.length) {
+            throw invalidHeader(filename);
+        }
+        for (int i = 0; i < headerName.length; i++) {
+            if (line[i] != headerName[i]) {
+                throw invalidHeader(filename);
+            }
+        }
+        return parseSize(line, nameEnd + 2, length - 1, filename);
+    }
+
+    // Find where the name in [start, end) ends: the line has to finish with "<whitespace>[digits]"
+    // and the name has to be at least one byte long
+    private static int nameEnd(byte[] line, int start, int end, String filename) throws IOException {
+        if (end - start < 5 || line[end - 1] != ']') {
+            throw invalidHeader(filename);
+        }
+        int bracket = end - 2;
+        while (bracket > start && line[bracket] >= '0' && line[bracket] <= '9') {
+            bracket--;
+        }
+        if (bracket == end - 2 || line[bracket] != '[' || bracket - 1 <= start || !isWhitespace(line[bracket - 1])) {
+            throw invalidHeader(filename);
+        }
+        return bracket - 1;
+    }
+
+    // Parse the decimal digits in [start, end) as a 64-bit size
+    private static long parseSize(byte[] line, int start, int end, String filename) throws IOException {
+        long size = 0;
+        for (int i = start; i < end; i++) {
+            int digit = line[i] - '0';
+            if (size > (Long.MAX_VALUE - digit) / 10) {
+                throw invalidHeader(filename);
+            }
+            size = size * 10 + digit;
+        }
+        return size;
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static IOException invalidHeader(String filename) {
+        return new IOException("Invalid header in file" + filename);
+    }
+
+    private static final byte[] headerName = "header".getBytes(Constants.headerEncoding);
+}
@@ -1,22 +1,97 @@
 package Tar;
 
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 public class Main {
     public static void main(String[] args) {
+        int status = run(args);
+        // Scripts tell a failed run, e.g. a damaged archive found by -verify, by the exit status
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    // Run the command line, returns the exit status: 0 on success, 1 when the action failed
+    static int run(String[] args) {
         final ArgParser parser = new ArgParser();
         parser.parseArguments(args);
 
         try {
-            if (parser.filesToZip != null) {
+            BufferPool.configure(parser.bufferSize, parser.buffers);
+            if (parser.fileToVerify != null) {
+                Archive archive = new Archive(parser.fileToVerify);
+                archive.setThreads(parser.threads);
+                archive.setVolumeDirectories(parser.volumeDirectories);
+                withProgress(parser, archive.getMetrics(), archive::verify);
+            } else if (parser.filesToZip != null) {
                 Archiver archiver = new Archiver(parser.filesToZip, parser.outFilename);
-                archiver.archive();
+                archiver.setCopyEngine(parser.copyEngine);
+                archiver.setThreads(parser.threads);
+                archiver.setFormatVersion(parser.formatVersion);
+                archiver.setDeduplicate(parser.deduplicate);
+                archiver.setSparse(parser.sparse);
+                archiver.setPipelineDepth(parser.pipelineDepth);
+                archiver.setVolumeSize(parser.volumeSize);
+                archiver.setVolumeDirectories(parser.volumeDirectories);
+                if (parser.codecName != null) {
+                    archiver.setCodec(Codecs.forName(parser.codecName));
+                    archiver.setBlockSize(parser.blockSize);
+                }
+                withProgress(parser, archiver.getMetrics(), () -> {
+                    if (parser.outFilename.equals(ArgParser.STANDARD_STREAM)) {
+                        archiver.archive(new FileOutputStream(FileDescriptor.out));
+                    } else if (parser.append) {
+                        archiver.append();
+                    } else {
+                        archiver.archive();
+                    }
+                });
+            } else if (parser.fileToUnzip.equals(ArgParser.STANDARD_STREAM)) {
+                StreamArchive archive = new StreamArchive(new BufferedInputStream(
+                        new FileInputStream(FileDescriptor.in), Constants.mb), "<stdin>");
+                archive.setPipelineDepth(parser.pipelineDepth);
+                withProgress(parser, archive.getMetrics(), () -> archive.unzip(""));
             } else {
                 Archive archive = new Archive(parser.fileToUnzip);
-                archive.unzip();
+                archive.setCopyEngine(parser.copyEngine);
+                archive.setThreads(parser.threads);
+                archive.setPipelineDepth(parser.pipelineDepth);
+                archive.setSync(parser.sync);
+                archive.setVolumeDirectories(parser.volumeDirectories);
+                withProgress(parser, archive.getMetrics(), () -> {
+                    if (parser.entriesToExtract != null) {
+                        archive.extract(parser.entriesToExtract);
+                    } else {
+                        archive.unzip();
+                    }
+                });
             }
         } catch (RuntimeException | IOException rtEx) {
             printError(rtEx.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    // Run the action and print its progress every few seconds when it was asked for
+    private static void withProgress(ArgParser parser, Metrics metrics, Action action) throws IOException {
+        if (parser.progressSeconds == 0) {
+            action.run();
+            return;
+        }
+        ProgressReporter reporter = new ProgressReporter(metrics, parser.progressSeconds, System.err);
+        try {
+            action.run();
+        } finally {
+            reporter.close();
         }
     }
 
@@ -24,13 +99,14 @@ public class Main {
     private static final String ANSI_RED = "\u001B[31m";
     private static final String ANSI_YELLOW = "\u001B[33m";
 
+    // Diagnostics go to stderr, so they never end up inside an archive written to stdout
     public static void printWarning(String text) {
-        System.out.print(ANSI_YELLOW + "WARNING: " + ANSI_RESET);
-        System.out.println(text);
+        System.err.print(ANSI_YELLOW + "WARNING: " + ANSI_RESET);
+        System.err.println(text);
     }
 
     public static void printError(String text) {
-        System.out.print(ANSI_RED + "ERROR: " + ANSI_RESET);
-        System.out.println(text);
+        System.err.print(ANSI_RED + "ERROR: " + ANSI_RESET);
+        System.err.println(text);
     }
 }
@@ -0,0 +1,233 @@
+package Tar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Read-only view of an archive mapped into memory.
+// Entries are handed out as buffers or streams over the mapping instead of being extracted to disk
+public class MappedArchive implements Closeable {
+    public MappedArchive(String filename) throws IOException {
+        this(filename, Constants.map_segment_size);
+    }
+
+    MappedArchive(String filename, long segmentSize) throws IOException {
+        this.filename = filename;
+        this.segmentSize = segmentSize;
+        channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ);
+        try {
+            fileSize = channel.size();
+            // Files over 2 GB cannot be mapped at once, so the file is covered by consecutive segments
+            segments = new ByteBuffer[(int) ((fileSize + segmentSize - 1) / segmentSize)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = i * segmentSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(segmentSize, fileSize - position));
+            }
+            readHeader();
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // Parse the header or the index straight from the mapping
+    private void readHeader() throws IOException {
+        entries = UndoFile.readIndex(filename, channel);
+        if (entries != null) {
+            return;
+        }
+        if (fileSize >= FormatV2.preambleSize + FormatV2.trailerSize && FormatV2.isV2(bytesAt(0, FormatV2.preambleSize))) {
+            FormatV2.checkPreamble(bytesAt(0, FormatV2.preambleSize), filename);
+            long indexOffset = FormatV2.indexOffset(
+                    bytesAt(fileSize - FormatV2.trailerSize, FormatV2.trailerSize), fileSize, filename);
+            entries = FormatV2.readIndex(
+                    new SegmentInputStream(indexOffset, fileSize - indexOffset), indexOffset, filename);
+            // Volumes are separate files, which one mapping cannot cover
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.volumeOf(i) > 0) {
+                    throw new IOException("Archive " + filename + " is split into volumes, open it with Archive");
+                }
+            }
+        } else {
+            entries = readTextHeader();
+        }
+    }
+
+    // Parse the text header of a version 1 archive
+    private EntryTable readTextHeader() throws IOException {
+        ByteBuffer first = region(0, Math.min(fileSize, segmentSize));
+        int lineEnd = 0;
+        while (lineEnd < Math.min(first.limit(), Constants.max_header_line) && first.get(lineEnd) != '\n') {
+            lineEnd++;
+        }
+        if (lineEnd == first.limit() || first.get(lineEnd) != '\n') {
+            throw new IOException("Invalid header in file" + filename);
+        }
+        long headerSize = HeaderParser.parseHeaderLine(bytesAt(0, lineEnd), lineEnd, filename);
+        if (headerSize > Integer.MAX_VALUE - 8 || lineEnd + 1L + headerSize > fileSize) {
+            throw new IOException("Invalid header in file" + filename);
+        }
+        EntryTable entries = HeaderParser.parseEntries(bytesAt(lineEnd + 1, (int) headerSize), filename);
+
+        long offset = lineEnd + 1L + headerSize;
+        for (int i = 0; i < entries.size(); i++) {
+            entries.setOffset(i, offset);
+            offset += entries.sizeOf(i);
+        }
+        if (offset > fileSize) {
+            throw new IOException("Archive " + filename + " is truncated");
+        }
+        return entries;
+    }
+
+    private byte[] bytesAt(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        region(position, length).get(bytes);
+        return bytes;
+    }
+
+    // Names of the entries in archive order
+    public List<String> getNames() {
+        return entries.names();
+    }
+
+    public long size(String name) {
+        return entryNamed(name).size;
+    }
+
+    // Contents of the entry as a read-only buffer over the mapping, no bytes are copied.
+    // Entries over 2 GB, compressed and deduplicated entries do not fit into one buffer, read them with openStream
+    public ByteBuffer buffer(String name) throws IOException {
+        Entry entry = entryNamed(name);
+        if (entry.chunkOffsets != null && entry.chunkOffsets.length == 1 && entry.size <= Integer.MAX_VALUE) {
+            return region(entry.chunkOffsets[0], entry.size);
+        } else if (entry.chunkOffsets != null && entry.size > 0) {
+            throw new IOException("Entry " + name + " is made of several chunks, use openStream");
+        } else if (entry.codec != Codecs.stored) {
+            throw new IOException("Entry " + name + " is compressed, use openStream");
+        } else if (entry.dataOffsets != null) {
+            throw new IOException("Entry " + name + " is sparse, use openStream");
+        } else if (entry.size > Integer.MAX_VALUE) {
+            throw new IOException("Entry " + name + " is too large for a single buffer, use openStream");
+        }
+        return region(entry.offset, entry.size);
+    }
+
+    // Contents of the entry as a stream over the mapping, works for entries of any size.
+    // Compressed entries are decompressed while they are read, deduplicated ones reassembled from their chunks
+    // and the holes of sparse ones read as zeros
+    public InputStream openStream(String name) throws IOException {
+        Entry entry = entryNamed(name);
+        if (entry.dataOffsets != null) {
+            return Sparse.open(entry, (storedPosition, length) ->
+                    new SegmentInputStream(entry.offset + storedPosition, length));
+        }
+        if (entry.chunkOffsets != null) {
+            List<InputStream> chunks = new ArrayList<>(entry.chunkOffsets.length);
+            for (int i = 0; i < entry.chunkOffsets.length; i++) {
+                chunks.add(new SegmentInputStream(entry.chunkOffsets[i], entry.chunkLengths[i]));
+            }
+            return new SequenceInputStream(Collections.enumeration(chunks));
+        }
+        InputStream stored = new SegmentInputStream(entry.offset, entry.storedSize);
+        if (entry.codec == Codecs.stored) {
+            return stored;
+        } else if (entry.blockSize > 0) {
+            return new Blocks.BlockInputStream(stored, Codecs.forId(entry.codec), entry.size, entry.blockSize);
+        }
+        return Codecs.forId(entry.codec).decompress(stored);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Mappings stay valid after the channel is closed and are released by the garbage collector
+        channel.close();
+    }
+
+    private Entry entryNamed(String name) {
+        int index = entries.find(name);
+        if (index < 0) {
+            throw new NoSuchElementException("No entry " + name + " in " + filename);
+        }
+        return entries.entry(index);
+    }
+
+    // Read-only buffer over [position, position + length). A range inside one segment is a slice of it,
+    // a range crossing a segment boundary gets a mapping of its own
+    private ByteBuffer region(long position, long length) throws IOException {
+        int segment = (int) (position / segmentSize);
+        int start = (int) (position % segmentSize);
+        if (length == 0) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        } else if (start + length <= segmentSize) {
+            return segments[segment].slice(start, (int) length);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    // Reads an entry segment by segment, so it never needs a mapping larger than a segment
+    private class SegmentInputStream extends InputStream {
+        SegmentInputStream(long position, long length) {
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() {
+            if (position >= end) {
+                return -1;
+            }
+            ByteBuffer segment = segments[(int) (position / segmentSize)];
+            int value = segment.get((int) (position % segmentSize)) & 0xFF;
+            position++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            } else if (position >= end) {
+                return -1;
+            }
+            ByteBuffer segment = segments[(int) (position / segmentSize)];
+            int start = (int) (position % segmentSize);
+            int count = (int) Math.min(len, Math.min(end - position, segment.limit() - start));
+            segment.get(start, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(end - position, Integer.MAX_VALUE);
+        }
+
+        private long position;
+        private final long end;
+    }
+
+    private final String filename;
+    private final long segmentSize;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ByteBuffer[] segments;
+    // Names of the entries in archive order
+    // The first entry wins when names repeat
+    private EntryTable entries;
+}
@@ -0,0 +1,157 @@
+package Tar;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters of a running archive, extract or verify job. Workers update them while the job runs and
+// any thread may read them at the same time. Blocked times are summed over all workers, so with several
+// threads they can add up to more than the elapsed time. Time spent in kernel copies (CopyEngine.TRANSFER)
+// is counted on its own, reading and writing cannot be told apart there
+public class Metrics {
+    // Bytes of entry contents processed so far, uncompressed
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    public long entries() {
+        return entries.sum();
+    }
+
+    // Entries left alone because the file on disk already had their contents, see Archive.setSync
+    public long skippedEntries() {
+        return skipped.sum();
+    }
+
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    public long totalEntries() {
+        return totalEntries;
+    }
+
+    public long readNanos() {
+        return readNanos.sum();
+    }
+
+    public long writeNanos() {
+        return writeNanos.sum();
+    }
+
+    public long transferNanos() {
+        return transferNanos.sum();
+    }
+
+    public long elapsedNanos() {
+        return startNanos == 0 ? 0 : System.nanoTime() - startNanos;
+    }
+
+    // Bytes per second since the job started
+    public double throughput() {
+        long elapsed = elapsedNanos();
+        return elapsed == 0 ? 0 : bytes() * 1e9 / elapsed;
+    }
+
+    // Bytes per second since the previous call, or since the job started for the first call
+    public synchronized double currentThroughput() {
+        long now = System.nanoTime();
+        long currentBytes = bytes();
+        long since = sampleNanos == 0 ? startNanos : sampleNanos;
+        double throughput = now == since ? 0 : (currentBytes - sampleBytes) * 1e9 / (now - since);
+        sampleNanos = now;
+        sampleBytes = currentBytes;
+        return throughput;
+    }
+
+    public void setListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    // Reset the counters for a new job
+    synchronized void start(long totalEntries, long totalBytes) {
+        bytes.reset();
+        entries.reset();
+        skipped.reset();
+        readNanos.reset();
+        writeNanos.reset();
+        transferNanos.reset();
+        this.totalEntries = totalEntries;
+        this.totalBytes = totalBytes;
+        sampleNanos = 0;
+        sampleBytes = 0;
+        startNanos = System.nanoTime();
+        listener.started(totalEntries, totalBytes);
+    }
+
+    void finish() {
+        listener.finished();
+    }
+
+    EntryEvent entryStarted(String operation, String name, long size) {
+        EntryEvent event = new EntryEvent();
+        event.operation = operation;
+        event.name = name;
+        event.size = size;
+        event.begin();
+        listener.entryStarted(name, size);
+        return event;
+    }
+
+    void entryFinished(EntryEvent event) {
+        event.commit();
+        entries.increment();
+        listener.entryFinished(event.name, event.size);
+    }
+
+    // The entry was done without writing it, its bytes count as processed
+    void entrySkipped(EntryEvent event) {
+        event.operation = "skip";
+        skipped.increment();
+        bytes.add(event.size);
+        entryFinished(event);
+    }
+
+    // Helpers for code that runs with or without metrics, they do nothing when metrics is null
+
+    // Start of a timed call
+    static long now(Metrics metrics) {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    static void read(Metrics metrics, long since) {
+        if (metrics != null) {
+            metrics.readNanos.add(System.nanoTime() - since);
+        }
+    }
+
+    static void wrote(Metrics metrics, long since) {
+        if (metrics != null) {
+            metrics.writeNanos.add(System.nanoTime() - since);
+        }
+    }
+
+    static void transferred(Metrics metrics, long since) {
+        if (metrics != null) {
+            metrics.transferNanos.add(System.nanoTime() - since);
+        }
+    }
+
+    static void addBytes(Metrics metrics, long count) {
+        if (metrics != null) {
+            metrics.bytes.add(count);
+        }
+    }
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAdder transferNanos = new LongAdder();
+    private volatile long totalEntries;
+    private volatile long totalBytes;
+    private volatile long startNanos;
+    // Previous sample of currentThroughput
+    private long sampleNanos;
+    private long sampleBytes;
+    private volatile ProgressListener listener = new ProgressListener() { };
+}
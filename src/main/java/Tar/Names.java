@@ -0,0 +1,154 @@
+package Tar;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+// List of strings kept as UTF-8 one after another in a single array, e.g. the names of millions of entries.
+// Every String object costs about 50 bytes besides its characters, a name here costs its bytes and an int.
+// get decodes the name again on every call. indexOf looks a name up in a hash table over the bytes,
+// which is built on first use
+class Names extends AbstractList<String> implements RandomAccess {
+    Names() {
+        this(16);
+    }
+
+    Names(int capacity) {
+        starts = new int[Math.max(capacity, 1) + 1];
+        bytes = new byte[Math.max(capacity, 1) * 16];
+    }
+
+    @Override
+    public boolean add(String name) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        int start = starts[count];
+        if (encoded.length > maxArraySize - start) {
+            throw new IllegalStateException("Names take more than " + maxArraySize + " bytes");
+        }
+        if (start + encoded.length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, grow(bytes.length, start + encoded.length));
+        }
+        if (count + 2 > starts.length) {
+            starts = Arrays.copyOf(starts, grow(starts.length, count + 2));
+        }
+        System.arraycopy(encoded, 0, bytes, start, encoded.length);
+        starts[count + 1] = start + encoded.length;
+        count++;
+        modCount++;
+        if (slots != null) {
+            insert(count - 1);
+        }
+        return true;
+    }
+
+    @Override
+    public String get(int index) {
+        Objects.checkIndex(index, count);
+        return new String(bytes, starts[index], starts[index + 1] - starts[index], StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    // Index of the first occurrence of the name, -1 if there is none
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof String name)) {
+            return -1;
+        }
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        int[] table = table();
+        int mask = table.length - 1;
+        for (int slot = hash(encoded, 0, encoded.length) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (Arrays.equals(bytes, starts[index], starts[index + 1], encoded, 0, encoded.length)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    // Heap the arrays take, with the hash table as indexOf builds it when it is not there yet
+    long heapBytes() {
+        long table = slots == null ? slotCount(count) : slots.length;
+        return bytes.length + Integer.BYTES * (starts.length + table);
+    }
+
+    // Readers may look names up from several threads, the first one builds the table
+    private synchronized int[] table() {
+        if (slots == null) {
+            rehash();
+        }
+        return slots;
+    }
+
+    // Open addressing with linear probing, a slot holds index + 1 and 0 when it is empty.
+    // The table is kept at most half full, so it cannot index more than half of maxSlots names
+    private void rehash() {
+        long capacity = slotCount(count);
+        if (capacity > maxSlots) {
+            throw new IllegalStateException("Names cannot look up more than " + maxSlots / 2 + " names");
+        }
+        slots = new int[(int) capacity];
+        for (int i = 0; i < count; i++) {
+            insert(i);
+        }
+    }
+
+    private static long slotCount(int count) {
+        return Long.highestOneBit(Math.max(count, 8) * 4L - 1);
+    }
+
+    private void insert(int index) {
+        if (2L * count > slots.length) {
+            rehash();
+            return;
+        }
+        int start = starts[index];
+        int end = starts[index + 1];
+        int mask = slots.length - 1;
+        int slot = hash(bytes, start, end) & mask;
+        while (slots[slot] != 0) {
+            int other = slots[slot] - 1;
+            // The first entry wins when names repeat
+            if (Arrays.equals(bytes, starts[other], starts[other + 1], bytes, start, end)) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = index + 1;
+    }
+
+    private static int hash(byte[] array, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + array[i];
+        }
+        // Probing uses the low bits, mix the high ones into them
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int grow(int length, int needed) {
+        return Math.min(Math.max(needed, length + (length >> 1)), maxArraySize);
+    }
+
+    // Largest array the JVM reliably allocates
+    private static final int maxArraySize = Integer.MAX_VALUE - 8;
+    // Largest power of two below maxArraySize
+    private static final int maxSlots = 1 << 30;
+
+    private byte[] bytes;
+    // Name i is bytes[starts[i], starts[i + 1])
+    private int[] starts;
+    private int count = 0;
+    private int[] slots;
+}
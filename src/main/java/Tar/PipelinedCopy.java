@@ -0,0 +1,212 @@
+package Tar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Checksum;
+
+// Copy between streams on two threads: a reader fills buffers and queues them, the calling thread writes them.
+// Reading the next buffer overlaps writing the previous one, which pays off where the kernel cannot move
+// the bytes by itself, e.g. a decompressing stream, a compressor or stdin. At most depth buffers wait
+// in the queue, so a slow writer stops the reader instead of letting the buffers pile up
+class PipelinedCopy {
+    // Same contract as CopyEngine.copyStream. A depth of 0 copies on the calling thread
+    static void copy(InputStream in, OutputStream out, long count, Checksum checksum, Metrics metrics, int depth)
+            throws IOException {
+        int bufferSize = (int) Math.min(count, BufferPool.shared().bufferSize());
+        // A copy of a few buffers has too little to overlap to pay for handing them to another thread
+        if (depth == 0 || count < (long) minBuffers * bufferSize) {
+            CopyEngine.copyStream(in, out, count, checksum, metrics);
+            return;
+        }
+
+        PipelinedCopy pipeline = new PipelinedCopy(depth, bufferSize);
+        readers.execute(() -> pipeline.read(in, count, checksum, metrics));
+        try {
+            pipeline.write(out, count, metrics);
+        } catch (IOException | RuntimeException ex) {
+            // Nothing may touch in or the checksum once the copy returns, so the reader is stopped and waited for
+            pipeline.stopReader();
+            pipeline.awaitReader();
+            Throwable readerFailure = pipeline.readerFailure;
+            if (readerFailure != null && readerFailure != ex && readerFailure != ex.getCause()) {
+                ex.addSuppressed(readerFailure);
+            }
+            throw ex;
+        }
+        pipeline.awaitReader();
+    }
+
+    private PipelinedCopy(int depth, int bufferSize) {
+        this.filled = new ArrayBlockingQueue<>(depth);
+        // One buffer is being filled and one written while depth of them wait
+        this.maxBuffers = depth + 2;
+        this.bufferSize = bufferSize;
+    }
+
+    // Runs on the reader thread, the checksum is updated here so it sees the bytes in order.
+    // A failure is queued like a buffer and thrown by the writer
+    private void read(InputStream in, long count, Checksum checksum, Metrics metrics) {
+        synchronized (this) {
+            if (stopped) {
+                done.countDown();
+                return;
+            }
+            readerThread = Thread.currentThread();
+        }
+        try {
+            long toRead = count;
+            while (toRead > 0) {
+                byte[] buffer = nextBuffer();
+                int length = (int) Math.min(toRead, buffer.length);
+                long start = Metrics.now(metrics);
+                int readBytes = in.readNBytes(buffer, 0, length);
+                Metrics.read(metrics, start);
+                if (readBytes < length) {
+                    throw new EOFException("Unexpected end of file, " + (toRead - readBytes) + " bytes missing");
+                }
+                if (checksum != null) {
+                    checksum.update(buffer, 0, readBytes);
+                }
+                filled.put(new Piece(buffer, readBytes, null));
+                toRead -= readBytes;
+            }
+        } catch (InterruptedException iEx) {
+            // The writer failed and gave up on the copy
+        } catch (Throwable ex) {
+            synchronized (this) {
+                // A read cut off by stopReader is not a failure of its own
+                if (!stopped) {
+                    readerFailure = ex;
+                }
+            }
+            try {
+                filled.put(new Piece(null, 0, ex));
+            } catch (InterruptedException iEx) {
+                // The writer gave up already
+            }
+        } finally {
+            synchronized (this) {
+                readerThread = null;
+                // The thread goes back to the pool, a stop that came in late must not interrupt its next copy
+                Thread.interrupted();
+            }
+            done.countDown();
+        }
+    }
+
+    // Interrupt the reader, or keep it from starting if it has not yet
+    private synchronized void stopReader() {
+        stopped = true;
+        if (readerThread != null) {
+            readerThread.interrupt();
+        }
+    }
+
+    // Wait until the reader is done with the input and the checksum, also when interrupted
+    private void awaitReader() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException iEx) {
+                interrupted = true;
+                stopReader();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(OutputStream out, long count, Metrics metrics) throws IOException {
+        long toWrite = count;
+        while (toWrite > 0) {
+            Piece piece;
+            try {
+                piece = filled.take();
+            } catch (InterruptedException iEx) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the reader");
+            }
+            if (piece.failure != null) {
+                throw rethrow(piece.failure);
+            }
+            long start = Metrics.now(metrics);
+            out.write(piece.buffer, 0, piece.length);
+            Metrics.wrote(metrics, start);
+            Metrics.addBytes(metrics, piece.length);
+            free.add(piece.buffer);
+            toWrite -= piece.length;
+        }
+    }
+
+    // Buffers are created as the reader gets ahead, at most maxBuffers of them
+    private byte[] nextBuffer() throws InterruptedException {
+        byte[] buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocated < maxBuffers) {
+            allocated++;
+            return new byte[bufferSize];
+        }
+        return free.take();
+    }
+
+    private static IOException rethrow(Throwable failure) {
+        if (failure instanceof IOException ioEx) {
+            return ioEx;
+        } else if (failure instanceof RuntimeException rtEx) {
+            throw rtEx;
+        } else if (failure instanceof Error error) {
+            throw error;
+        }
+        return new IOException(failure);
+    }
+
+    // A filled buffer, or the failure of the reader
+    private static class Piece {
+        Piece(byte[] buffer, int length, Throwable failure) {
+            this.buffer = buffer;
+            this.length = length;
+            this.failure = failure;
+        }
+
+        final byte[] buffer;
+        final int length;
+        final Throwable failure;
+    }
+
+    // Copies shorter than this many buffers run on the calling thread
+    private static final int minBuffers = 4;
+    // Readers run on daemon threads that are kept for the next copy instead of started for every one.
+    // A reader blocked on a stream that never ends must not keep the program alive
+    private static final ExecutorService readers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "tar-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BlockingQueue<Piece> filled;
+    private final BlockingQueue<byte[]> free = new LinkedBlockingQueue<>();
+    private final int maxBuffers;
+    private final int bufferSize;
+    // Only touched by the reader
+    private int allocated = 0;
+    private final CountDownLatch done = new CountDownLatch(1);
+    // Guarded by this
+    private Thread readerThread;
+    private boolean stopped = false;
+    // Published to the writer by done
+    private Throwable readerFailure;
+}
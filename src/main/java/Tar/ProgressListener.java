@@ -0,0 +1,19 @@
+package Tar;
+
+// Callbacks of a running archive, extract or verify job, see Metrics.
+// Entries are processed on several workers at once, so implementations have to be thread-safe
+public interface ProgressListener {
+    // Called before the first entry, with the number of entries and bytes the job is going to process
+    default void started(long totalEntries, long totalBytes) {
+    }
+
+    default void entryStarted(String name, long size) {
+    }
+
+    default void entryFinished(String name, long size) {
+    }
+
+    // Called once the last entry is done, also when the job failed
+    default void finished() {
+    }
+}
@@ -0,0 +1,45 @@
+package Tar;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Prints a line about the running job every few seconds and a last one when it is closed.
+// The lines go to stderr, so they never end up inside an archive written to stdout
+class ProgressReporter implements AutoCloseable {
+    ProgressReporter(Metrics metrics, int seconds, PrintStream out) {
+        this.metrics = metrics;
+        this.out = out;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tar-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::report, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        report();
+    }
+
+    // e.g. "12/40 entries, 310.5/1024.0 MB, 95.2 MB/s (avg 88.1 MB/s), blocked read 1.2 s, write 0.4 s, transfer 0.0 s"
+    private synchronized void report() {
+        String entries = metrics.entries() + (metrics.totalEntries() > 0 ? "/" + metrics.totalEntries() : "")
+                + " entries" + (metrics.skippedEntries() > 0 ? " (" + metrics.skippedEntries() + " unchanged)" : "");
+        String bytes = megabytes(metrics.bytes()) + (metrics.totalBytes() > 0 ? "/" + megabytes(metrics.totalBytes()) : "");
+        out.printf("%s, %s MB, %.1f MB/s (avg %.1f MB/s), blocked read %.1f s, write %.1f s, transfer %.1f s%n",
+                entries, bytes, metrics.currentThroughput() / Constants.mb, metrics.throughput() / Constants.mb,
+                metrics.readNanos() / 1e9, metrics.writeNanos() / 1e9, metrics.transferNanos() / 1e9);
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f", (double) bytes / Constants.mb);
+    }
+
+    private final Metrics metrics;
+    private final PrintStream out;
+    private final ScheduledExecutorService scheduler;
+}
@@ -0,0 +1,56 @@
+package Tar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+
+// Stream over [position, position + length) of a channel. Positional reads leave the channel untouched,
+// so several streams may read the same channel from different threads
+class RegionInputStream extends InputStream {
+    RegionInputStream(FileChannel channel, long position, long length) {
+        this.channel = channel;
+        this.position = position;
+        this.end = position + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        } else if (position >= end) {
+            return -1;
+        }
+        int readBytes = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+        if (readBytes < 0) {
+            throw new EOFException("Unexpected end of file, " + (end - position) + " bytes missing");
+        }
+        position += readBytes;
+        return readBytes;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(end - position, Integer.MAX_VALUE);
+    }
+
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+}
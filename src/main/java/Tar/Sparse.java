@@ -0,0 +1,132 @@
+package Tar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.input.NullInputStream;
+
+// Holes of sparse files. Java has no way to ask the file system where they are (SEEK_DATA / SEEK_HOLE),
+// so files are scanned for runs of zero blocks instead, reading a hole costs no disk I/O.
+// A sparse entry stores only its data regions, one after another, see FormatV2.sparseField
+class Sparse {
+    // Find the holes of the file and list its data regions in the entry, which is left alone
+    // when the file has none. Only whole blocks of Constants.sparse_block_size zeros become holes
+    static void scan(FileChannel in, Entry entry, Metrics metrics) throws IOException {
+        List<long[]> regions = new ArrayList<>();
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buffer = pool.acquire();
+        try {
+            int blockSize = Math.min(Constants.sparse_block_size, buffer.capacity());
+            // Whole blocks at a time, so a block never spans two reads
+            int readSize = buffer.capacity() / blockSize * blockSize;
+            long position = 0;
+            long dataStart = -1;
+            while (position < entry.size) {
+                buffer.clear().limit((int) Math.min(readSize, entry.size - position));
+                long start = Metrics.now(metrics);
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("File " + entry.name + " shrank while it was scanned for holes");
+                    }
+                }
+                Metrics.read(metrics, start);
+                for (int block = 0; block < buffer.limit(); block += blockSize) {
+                    int length = Math.min(blockSize, buffer.limit() - block);
+                    boolean zero = buffer.slice(block, length).mismatch(zeros.slice(0, length)) < 0;
+                    if (!zero && dataStart < 0) {
+                        dataStart = position + block;
+                    } else if (zero && dataStart >= 0) {
+                        regions.add(new long[] { dataStart, position + block - dataStart });
+                        dataStart = -1;
+                    }
+                }
+                position += buffer.limit();
+            }
+            if (dataStart >= 0) {
+                regions.add(new long[] { dataStart, entry.size - dataStart });
+            }
+        } finally {
+            pool.release(buffer);
+        }
+
+        long storedSize = 0;
+        for (long[] region : regions) {
+            storedSize += region[1];
+        }
+        if (storedSize == entry.size) {
+            return;
+        }
+        entry.dataOffsets = new long[regions.size()];
+        entry.dataLengths = new long[regions.size()];
+        for (int i = 0; i < regions.size(); i++) {
+            entry.dataOffsets[i] = regions.get(i)[0];
+            entry.dataLengths[i] = regions.get(i)[1];
+        }
+        entry.storedSize = storedSize;
+    }
+
+    // Whether [position, position + length) of the file reads as zeros
+    static boolean isZero(FileChannel in, long position, long length) throws IOException {
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buffer = pool.acquire();
+        try {
+            long checked = 0;
+            while (checked < length) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - checked));
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, position + checked + buffer.position()) < 0) {
+                        return false;
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    int block = Math.min(zeros.capacity(), buffer.remaining());
+                    if (buffer.slice(buffer.position(), block).mismatch(zeros.slice(0, block)) >= 0) {
+                        return false;
+                    }
+                    buffer.position(buffer.position() + block);
+                }
+                checked += buffer.limit();
+            }
+            return true;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    // Contents of a sparse entry with the holes filled with zeros, data regions come from stored,
+    // which reads the stored bytes of the region starting at the given offset from the start of the contents
+    static InputStream open(Entry entry, StoredRegions stored) throws IOException {
+        List<InputStream> parts = new ArrayList<>(2 * entry.dataOffsets.length + 1);
+        long filePosition = 0;
+        long storedPosition = 0;
+        for (int i = 0; i < entry.dataOffsets.length; i++) {
+            if (entry.dataOffsets[i] > filePosition) {
+                parts.add(hole(entry.dataOffsets[i] - filePosition));
+            }
+            parts.add(stored.open(storedPosition, entry.dataLengths[i]));
+            filePosition = entry.dataOffsets[i] + entry.dataLengths[i];
+            storedPosition += entry.dataLengths[i];
+        }
+        if (entry.size > filePosition) {
+            parts.add(hole(entry.size - filePosition));
+        }
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    interface StoredRegions {
+        InputStream open(long storedPosition, long length) throws IOException;
+    }
+
+    private static InputStream hole(long length) {
+        return new NullInputStream(length, false, false);
+    }
+
+    private static final ByteBuffer zeros = ByteBuffer.allocateDirect(Constants.sparse_block_size);
+}
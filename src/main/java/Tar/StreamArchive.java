@@ -0,0 +1,170 @@
+package Tar;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+// Reads an archive in a single forward pass from any stream, e.g. stdin, a pipe or a socket.
+// Nothing is seeked or read twice, so the source never has to be a file
+class StreamArchive {
+    StreamArchive(InputStream in, String name) throws IOException {
+        this.name = name;
+        PushbackInputStream pushback = new PushbackInputStream(in, FormatV2.preambleSize);
+        this.in = pushback;
+
+        byte[] preamble = pushback.readNBytes(FormatV2.preambleSize);
+        if (FormatV2.isV2(preamble)) {
+            FormatV2.checkPreamble(preamble, name);
+            // Version 2 entries are discovered one by one from the records in front of them
+            files = null;
+        } else {
+            pushback.unread(preamble);
+            files = Archive.readHeader(pushback, name);
+        }
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void setListener(ProgressListener listener) {
+        metrics.setListener(listener);
+    }
+
+    // Entries are written while the next buffer is read from the stream, see Archiver.setPipelineDepth
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 0) {
+            throw new IllegalArgumentException("Queue depth cannot be negative");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    // Write every entry into the given directory in archive order
+    public void unzip(String path) throws IOException {
+        // Version 2 entries are only known once they are reached, so their totals are unknown
+        long totalBytes = 0;
+        if (files != null) {
+            for (int i = 0; i < files.size(); i++) {
+                totalBytes += files.sizeOf(i);
+            }
+        }
+        metrics.start(files == null ? 0 : files.size(), totalBytes);
+        try {
+            if (files != null) {
+                for (int i = 0; i < files.size(); i++) {
+                    extractEntry(path, files.entry(i), null);
+                }
+            } else {
+                unzipV2(path);
+            }
+        } finally {
+            metrics.finish();
+        }
+    }
+
+    private void unzipV2(String path) throws IOException {
+        // Checksums are only in the index, so the entries are checked against it once they are all written
+        List<Entry> extracted = new ArrayList<>();
+        List<Long> checksums = new ArrayList<>();
+        int tag;
+        while ((tag = in.read()) == FormatV2.entryTag) {
+            Entry entry = FormatV2.readLocalHeader(in, name);
+            CRC32C checksum = new CRC32C();
+            extractEntry(path, entry, checksum);
+            extracted.add(entry);
+            checksums.add(checksum.getValue());
+        }
+        if (tag != FormatV2.indexTag) {
+            throw new IOException("Invalid header in file" + name);
+        }
+        in.unread(tag);
+        EntryTable index = FormatV2.readIndex(in, Long.MAX_VALUE, name);
+        if (index.size() > 0 && index.volumeOf(index.size() - 1) > 0) {
+            throw new IOException("Archive " + name + " is split into volumes, extract it from its files");
+        }
+        if (index.size() != extracted.size()) {
+            throw new IOException("Invalid index in file" + name);
+        }
+        for (int i = 0; i < index.size(); i++) {
+            long expected = index.checksumOf(i);
+            if (expected != FormatV2.noChecksum && expected != checksums.get(i)) {
+                throw new IOException("Checksum mismatch in " + extracted.get(i).name + " of file " + name);
+            }
+        }
+    }
+
+    private void extractEntry(String path, Entry entry, Checksum checksum) throws IOException {
+        EntryEvent event = metrics.entryStarted("extract", entry.name, entry.size);
+        writeEntry(path, entry, checksum);
+        metrics.entryFinished(event);
+    }
+
+    private void writeEntry(String path, Entry entry, Checksum checksum) throws IOException {
+        Archive.createDirectories(path, List.of(entry), createdDirectories);
+        if (entry.chunkOffsets != null) {
+            // Chunks are shared with earlier entries, which a forward pass has already gone past
+            throw new IOException("Entry " + entry.name + " is deduplicated and needs random access, extract "
+                    + name + " from a file");
+        }
+        if (entry.dataOffsets != null) {
+            writeSparse(path, entry, checksum);
+            return;
+        }
+        try (FileOutputStream fOS = new FileOutputStream(path + entry.name)) {
+            if (entry.codec == Codecs.stored) {
+                PipelinedCopy.copy(in, fOS, entry.size, checksum, metrics, pipelineDepth);
+                return;
+            } else if (entry.blockSize > 0) {
+                // Blocks are framed by their lengths, so they are read without knowing the stored size
+                PipelinedCopy.copy(new Blocks.BlockInputStream(in, Codecs.forId(entry.codec), entry.size,
+                        entry.blockSize), fOS, entry.size, checksum, metrics, pipelineDepth);
+                return;
+            }
+            // The decompressor may read ahead, so it only sees this entry's bytes
+            BoundedInputStream stored = new BoundedInputStream(in, entry.storedSize);
+            stored.setPropagateClose(false);
+            try (InputStream decompressed = Codecs.forId(entry.codec).decompress(stored)) {
+                PipelinedCopy.copy(decompressed, fOS, entry.size, checksum, metrics, pipelineDepth);
+            }
+            // Skip whatever the decompressor left unread, e.g. padding after the end of the compressed data
+            stored.skip(Long.MAX_VALUE);
+        }
+    }
+
+    // Data regions follow each other in the stream, each one is written at its offset in the file
+    private void writeSparse(String path, Entry entry, Checksum checksum) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(path + entry.name, "rw")) {
+            out.setLength(0);
+            FileChannel outChannel = out.getChannel();
+            OutputStream outStream = Channels.newOutputStream(outChannel);
+            for (int i = 0; i < entry.dataOffsets.length; i++) {
+                outChannel.position(entry.dataOffsets[i]);
+                PipelinedCopy.copy(in, outStream, entry.dataLengths[i], checksum, metrics, pipelineDepth);
+            }
+            out.setLength(entry.size);
+        }
+        Metrics.addBytes(metrics, entry.size - entry.storedSize);
+    }
+
+    private final String name;
+    private final PushbackInputStream in;
+    // Files of a version 1 archive, read from its header
+    private final EntryTable files;
+    // Directories created so far, each one is created once
+    private final Set<String> createdDirectories = new HashSet<>();
+    private final Metrics metrics = new Metrics();
+    private int pipelineDepth = Constants.pipeline_depth;
+}
@@ -0,0 +1,181 @@
+package Tar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs many archive, extract and verify jobs inside one JVM, e.g. in a service that handles requests.
+// Nothing exits the process or prints: every job returns a future that completes with the job's metrics
+// or with its failure. Two limits are shared by all jobs:
+// - at most maxJobs jobs do I/O at once, the others wait in a queue without holding a thread,
+// - every job reserves the heap memory it may use (see Archiver.memoryEstimate) from memoryLimit before it starts.
+//   A job that needs more than the whole limit runs once nothing else holds any memory.
+//   Extract and verify jobs read the archive index first, as their estimate depends on it, and the entries
+//   read are part of the estimate. So at most maxJobs indexes are held outside the limit, while they are read
+// Copy buffers are bounded for all jobs together by BufferPool.configure
+public class TarService implements AutoCloseable {
+    public TarService(int maxJobs, long memoryLimit) {
+        if (maxJobs < 1) {
+            throw new IllegalArgumentException("Job count must be positive");
+        }
+        if (memoryLimit < memoryUnit) {
+            throw new IllegalArgumentException("Memory limit must be at least " + memoryUnit + " bytes");
+        }
+        memoryPermits = (int) Math.min(memoryLimit / memoryUnit, Integer.MAX_VALUE);
+        memory = new Semaphore(memoryPermits, true);
+        AtomicInteger jobNumber = new AtomicInteger();
+        jobs = Executors.newFixedThreadPool(maxJobs, runnable -> {
+            Thread thread = new Thread(runnable, "tar-job-" + jobNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Write the archive configured in archiver. An archiver must not be submitted again before its job is done
+    public CompletableFuture<Metrics> archive(Archiver archiver) {
+        return submit(() -> withMemory(archiver.memoryEstimate(), () -> {
+            archiver.archive();
+            return archiver.getMetrics();
+        }));
+    }
+
+    // Add the files of archiver to the archive it was given as output, see Archiver.append
+    public CompletableFuture<Metrics> append(Archiver archiver) {
+        return submit(() -> withMemory(archiver.memoryEstimate(), () -> {
+            archiver.append();
+            return archiver.getMetrics();
+        }));
+    }
+
+    // Extract every entry into the directory that holds the archive, also when archiveFilename is absolute
+    public CompletableFuture<Metrics> unzip(String archiveFilename) {
+        return submit(() -> {
+            Archive archive = open(archiveFilename);
+            return withMemory(archive.memoryEstimate(), () -> {
+                archive.unzip();
+                return archive.getMetrics();
+            });
+        });
+    }
+
+    // Extract the entries matching the patterns into the directory that holds the archive, see Archive.extract
+    public CompletableFuture<Metrics> extract(String archiveFilename, List<String> patterns) {
+        return submit(() -> {
+            Archive archive = open(archiveFilename);
+            return withMemory(archive.memoryEstimate(), () -> {
+                archive.extract(patterns);
+                return archive.getMetrics();
+            });
+        });
+    }
+
+    public CompletableFuture<Metrics> verify(String archiveFilename) {
+        return submit(() -> {
+            Archive archive = open(archiveFilename);
+            return withMemory(archive.memoryEstimate(), () -> {
+                archive.verify();
+                return archive.getMetrics();
+            });
+        });
+    }
+
+    // Settings of the archives opened by unzip, extract and verify jobs. Archivers carry their own
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.threads = threads;
+    }
+
+    public void setCopyEngine(CopyEngine copyEngine) {
+        this.copyEngine = copyEngine;
+    }
+
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 0) {
+            throw new IllegalArgumentException("Queue depth cannot be negative");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    // Stop taking jobs and wait for the submitted ones to finish.
+    // An interrupt ends the waiting early, the jobs keep running and the interrupt flag stays set
+    @Override
+    public void close() {
+        jobs.shutdown();
+        try {
+            while (!jobs.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Jobs may take long, keep waiting
+            }
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Job {
+        Metrics run() throws IOException;
+    }
+
+    private CompletableFuture<Metrics> submit(Job job) {
+        CompletableFuture<Metrics> result = new CompletableFuture<>();
+        try {
+            jobs.execute(() -> {
+                try {
+                    result.complete(job.run());
+                } catch (Throwable ex) {
+                    result.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException reEx) {
+            result.completeExceptionally(new IllegalStateException("Service is closed"));
+        }
+        return result;
+    }
+
+    // Run the job holding bytes of the memory limit
+    private Metrics withMemory(long bytes, Job job) throws IOException {
+        int permits = (int) Math.min((bytes + memoryUnit - 1) / memoryUnit, memoryPermits);
+        try {
+            memory.acquire(permits);
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        }
+        try {
+            return job.run();
+        } finally {
+            memory.release(permits);
+        }
+    }
+
+    private Archive open(String archiveFilename) throws IOException {
+        Archive archive = new Archive(archiveFilename);
+        archive.setThreads(threads);
+        archive.setCopyEngine(copyEngine);
+        archive.setPipelineDepth(pipelineDepth);
+        archive.setSync(sync);
+        return archive;
+    }
+
+    // Memory is counted in units of this many bytes, so a semaphore can count it
+    private static final int memoryUnit = 1024;
+
+    private final ExecutorService jobs;
+    private final Semaphore memory;
+    private final int memoryPermits;
+    private volatile int threads = 1;
+    private volatile CopyEngine copyEngine = CopyEngine.TRANSFER;
+    private volatile int pipelineDepth = Constants.pipeline_depth;
+    private volatile boolean sync = false;
+}
@@ -0,0 +1,116 @@
+package Tar;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+// Keeps an archive readable while files are appended to it. Appending writes the new contents over the old index,
+// so before anything is written the old closing bytes (index and trailer) are saved durably as "<archive>.undo".
+// Removing the undo file once the new trailer is on disk completes the append. While it is there, e.g. after
+// the process was killed, the append counts as not done: readers take the old index from it, whose entries
+// all end before the overwritten part, and the next append puts it back first.
+// The undo file starts with the CRC32C of the archive bytes right before the old index, which an append never
+// writes to. An undo file that does not match them was left behind by another archive of the same name
+class UndoFile {
+    static Path path(String archiveFilename) {
+        return Path.of(archiveFilename + ".undo");
+    }
+
+    static void save(String archiveFilename, byte[] closing) throws IOException {
+        long indexOffset = indexOffset(closing, archiveFilename);
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + closing.length);
+        try (FileChannel archive = FileChannel.open(Path.of(archiveFilename), StandardOpenOption.READ)) {
+            buffer.putLong(checksumBeforeIndex(archive, indexOffset, archiveFilename));
+        }
+        buffer.put(closing).flip();
+        try (FileChannel channel = FileChannel.open(path(archiveFilename), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    // Make the appended contents and the new index durable, then drop the undo file
+    static void commit(String archiveFilename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(archiveFilename), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.delete(path(archiveFilename));
+    }
+
+    // Put the old index back behind the old contents if an append did not finish
+    static void restore(String archiveFilename) throws IOException {
+        Path undo = path(archiveFilename);
+        if (!Files.exists(undo)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(Path.of(archiveFilename), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            byte[] closing = readClosing(archiveFilename, channel);
+            long indexOffset = indexOffset(closing, archiveFilename);
+            channel.truncate(indexOffset);
+            ByteBuffer buffer = ByteBuffer.wrap(closing);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, indexOffset + buffer.position());
+            }
+            channel.force(true);
+        }
+        Files.delete(undo);
+    }
+
+    // Entries of the archive before an append that did not finish, null if there is none
+    static EntryTable readIndex(String archiveFilename, FileChannel archive) throws IOException {
+        if (!Files.exists(path(archiveFilename))) {
+            return null;
+        }
+        byte[] closing = readClosing(archiveFilename, archive);
+        return FormatV2.readIndex(new ByteArrayInputStream(closing), indexOffset(closing, archiveFilename),
+                archiveFilename);
+    }
+
+    // The saved index and trailer, once the undo file is known to belong to the archive
+    private static byte[] readClosing(String archiveFilename, FileChannel archive) throws IOException {
+        byte[] undo = Files.readAllBytes(path(archiveFilename));
+        if (undo.length < Long.BYTES + FormatV2.trailerSize) {
+            throw new IOException("Invalid index in file " + path(archiveFilename));
+        }
+        byte[] closing = Arrays.copyOfRange(undo, Long.BYTES, undo.length);
+        long indexOffset = indexOffset(closing, archiveFilename);
+        if (archive.size() < indexOffset) {
+            throw new IOException("Archive " + archiveFilename + " is truncated");
+        }
+        if (ByteBuffer.wrap(undo).getLong() != checksumBeforeIndex(archive, indexOffset, archiveFilename)) {
+            throw new IOException("File " + path(archiveFilename) + " does not belong to archive " + archiveFilename
+                    + ", remove it if no append to the archive was cut off");
+        }
+        return closing;
+    }
+
+    private static long checksumBeforeIndex(FileChannel archive, long indexOffset, String archiveFilename)
+            throws IOException {
+        int length = (int) Math.min(indexOffset, checkedBytes);
+        CRC32C checksum = new CRC32C();
+        checksum.update(FormatV2.readAt(archive, indexOffset - length, length, archiveFilename));
+        return checksum.getValue();
+    }
+
+    private static long indexOffset(byte[] closing, String archiveFilename) throws IOException {
+        if (closing.length < FormatV2.trailerSize) {
+            throw new IOException("Invalid index in file " + path(archiveFilename));
+        }
+        // The trailer checks the offset against the size of the archive, which is not known here
+        return FormatV2.indexOffset(Arrays.copyOfRange(closing, closing.length - FormatV2.trailerSize, closing.length),
+                Long.MAX_VALUE, archiveFilename);
+    }
+
+    // Bytes before the old index the checksum covers, the end of the last entry and its record
+    private static final int checkedBytes = 64 * 1024;
+}
@@ -0,0 +1,66 @@
+package Tar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A split archive is its archive file, which only has the preamble, the index and the trailer,
+// and numbered volumes with the entries. Volume n of "backup.tar" is "backup.tar.v00n", next to it
+// or in one of the volume directories, which it cycles through so the volumes can be spread over several disks.
+// Every volume starts with the preamble followed by records and contents like the entries of an archive.
+// A file larger than a volume continues right behind the preamble of the next volumes, without a record,
+// and its index entry lists the parts as chunks with their volumes
+class Volumes {
+    // Where the writer puts volume number volume (from 1 on)
+    static Path path(String archiveFilename, int volume, List<String> directories) {
+        if (directories.isEmpty()) {
+            return Path.of(archiveFilename + suffix(volume));
+        }
+        String directory = directories.get((volume - 1) % directories.size());
+        return Path.of(directory, new File(archiveFilename).getName() + suffix(volume));
+    }
+
+    // Find the volume next to the archive or in one of the directories
+    static Path find(String archiveFilename, int volume, List<String> directories) throws IOException {
+        Path next = Path.of(archiveFilename + suffix(volume));
+        if (Files.isRegularFile(next)) {
+            return next;
+        }
+        for (String directory : directories) {
+            Path candidate = Path.of(directory, new File(archiveFilename).getName() + suffix(volume));
+            if (Files.isRegularFile(candidate)) {
+                return candidate;
+            }
+        }
+        throw new IOException("Volume " + volume + " of archive " + archiveFilename + " is missing");
+    }
+
+    // Indexes of the entries ordered so that consecutive ones are in different volumes, workers taking them
+    // in order then read or write all volumes at once. Entries of the same volume keep their order
+    static List<Integer> interleave(List<Entry> entries) {
+        Map<Integer, Deque<Integer>> byVolume = new TreeMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            byVolume.computeIfAbsent(entries.get(i).volume, volume -> new ArrayDeque<>()).add(i);
+        }
+        List<Integer> interleaved = new ArrayList<>(entries.size());
+        while (interleaved.size() < entries.size()) {
+            for (Deque<Integer> volume : byVolume.values()) {
+                if (!volume.isEmpty()) {
+                    interleaved.add(volume.poll());
+                }
+            }
+        }
+        return interleaved;
+    }
+
+    private static String suffix(int volume) {
+        return String.format(".v%03d", volume);
+    }
+}
@@ -0,0 +1,124 @@
+package Tar;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Runs independent I/O tasks on a bounded pool of worker threads
+class Workers {
+    // Consumer of task results that may fail with an IOException
+    interface ResultSink<T> {
+        void accept(T result) throws IOException;
+    }
+
+    // Run all tasks on at most threads workers and wait for them to finish.
+    // The first failure cancels the remaining tasks and is rethrown
+    static void runAll(int threads, List<Callable<Void>> tasks) throws IOException {
+        if (threads <= 1) {
+            runInline(tasks);
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            List<Future<Void>> futures = new ArrayList<>(tasks.size());
+            for (Callable<Void> task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                await(future);
+            }
+        } finally {
+            shutdown(pool);
+        }
+    }
+
+    // Run tasks on threads workers and hand their results to sink on the calling thread, in task order.
+    // At most threads + 1 tasks are in flight, which bounds the memory their results hold.
+    // Results that are never handed to sink because of a failure are passed to discard
+    static <T> void runOrdered(int threads, List<Callable<T>> tasks, ResultSink<T> sink, ResultSink<T> discard)
+            throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        Deque<Future<T>> window = new ArrayDeque<>();
+        try {
+            for (Callable<T> task : tasks) {
+                window.add(pool.submit(task));
+                if (window.size() > threads) {
+                    sink.accept(await(window.poll()));
+                }
+            }
+            while (!window.isEmpty()) {
+                sink.accept(await(window.poll()));
+            }
+        } finally {
+            shutdown(pool);
+            for (Future<T> future : window) {
+                try {
+                    discard.accept(future.get());
+                } catch (Exception ex) {
+                    // The task failed or was cancelled, there is nothing to discard
+                }
+            }
+        }
+    }
+
+    // Wait for the task and rethrow its failure
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException exEx) {
+            Throwable cause = exEx.getCause();
+            if (cause instanceof IOException ioEx) {
+                throw ioEx;
+            } else if (cause instanceof UncheckedIOException uioEx) {
+                throw uioEx.getCause();
+            } else if (cause instanceof RuntimeException rtEx) {
+                throw rtEx;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException intEx) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for workers", intEx);
+        }
+    }
+
+    // Cancel the tasks that are left and wait until none of them runs any more, so no worker
+    // touches files or buffers after the caller has moved on, e.g. closed its channel or reported a failure
+    private static void shutdown(ExecutorService pool) {
+        pool.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException intEx) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A single worker is just the calling thread
+    private static void runInline(List<Callable<Void>> tasks) throws IOException {
+        for (Callable<Void> task : tasks) {
+            try {
+                task.call();
+            } catch (IOException | RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+}
@@ -9,15 +9,35 @@ import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.io.FileUtils;
@@ -29,9 +49,9 @@ public class TarTest {
             "test-random-file-3.txt",
             "test-random-file-4.txt");
     // Directory for output files
-    private static final String outDirName = "outDir\\";
+    private static final String outDirName = "outDir" + File.separator;
     // Directory for files, that have to be deleted after test
-    private static final String tempDirName = "tempDir\\";
+    private static final String tempDirName = "tempDir" + File.separator;
     private static final String[] unzipArgs = String.format("-u %stest-archive.txt", outDirName).split(" ");
 
     // Max dimentions for a test file
@@ -263,7 +283,1118 @@ public class TarTest {
         Tar.Main.main(unzipArgs);
         for (String filename : filenames) {
             Assert.assertTrue(new File(outDirName +
-                    filename.substring(filename.lastIndexOf("\\") + 1)).exists());
+                    new File(filename).getName()).exists());
+        }
+    }
+
+    @Test
+    public void copyEngines() {
+        for (CopyEngine engine : CopyEngine.values()) {
+            String[] testArgs = String.format("-engine %s -out %stest-archive.txt %s %s %s",
+                    engine, outDirName, testFN.get(0), testFN.get(1), testFN.get(2)).split(" ");
+            String[] engineUnzipArgs = String.format("-engine %s -u %stest-archive.txt",
+                    engine, outDirName).split(" ");
+
+            Tar.Main.main(testArgs);
+            Assert.assertTrue(new File(String.format("%stest-archive.txt", outDirName)).exists());
+            Tar.Main.main(engineUnzipArgs);
+            Assert.assertTrue(compareFileContent(testFN.get(0), outDirName + testFN.get(0)));
+            Assert.assertTrue(compareFileContent(testFN.get(1), outDirName + testFN.get(1)));
+            Assert.assertTrue(compareFileContent(testFN.get(2), outDirName + testFN.get(2)));
+
+            cleanTestDirectory();
+        }
+    }
+
+    @Test
+    public void parallelUnzip() {
+        for (CopyEngine engine : CopyEngine.values()) {
+            String[] testArgs = String.format("-out %stest-archive.txt %s %s %s %s",
+                    outDirName, testFN.get(0), testFN.get(1), testFN.get(2), testFN.get(3)).split(" ");
+            String[] parallelUnzipArgs = String.format("-threads 3 -engine %s -u %stest-archive.txt",
+                    engine, outDirName).split(" ");
+
+            Tar.Main.main(testArgs);
+            Tar.Main.main(parallelUnzipArgs);
+            for (String filename : testFN) {
+                Assert.assertTrue(compareFileContent(filename, outDirName + filename));
+            }
+
+            cleanTestDirectory();
+        }
+    }
+
+    @Test
+    public void parallelArchive() {
+        for (CopyEngine engine : CopyEngine.values()) {
+            String[] testArgs = String.format("-threads 3 -engine %s -out %stest-archive.txt %s %s %s %s",
+                    engine, outDirName, testFN.get(0), testFN.get(1), testFN.get(2), testFN.get(3)).split(" ");
+
+            Tar.Main.main(testArgs);
+            Tar.Main.main(unzipArgs);
+            for (String filename : testFN) {
+                Assert.assertTrue(compareFileContent(filename, outDirName + filename));
+            }
+
+            cleanTestDirectory();
+        }
+    }
+
+    @Test
+    public void fileChangedWhileArchiving() throws IOException {
+        String changingFile = tempDirName + "changing-file.txt";
+        FileUtils.writeStringToFile(new File(changingFile), "initial content", Constants.headerEncoding);
+
+        for (int threads : new int[] { 1, 3 }) {
+            Archiver archiver = new Archiver(Arrays.asList(testFN.get(0), changingFile),
+                    outDirName + "test-archive.txt");
+            archiver.setThreads(threads);
+            FileUtils.writeStringToFile(new File(changingFile), " and more", Constants.headerEncoding, true);
+
+            try {
+                archiver.archive();
+                fail("Archive was created from a file that changed size");
+            } catch (IOException ioEx) {
+                Assert.assertFalse(new File(outDirName + "test-archive.txt").exists());
+            }
+        }
+    }
+
+    @Test
+    public void extractSelectedEntries() {
+        String[] testArgs = String.format("-out %stest-archive.txt %s %s %s %s",
+                outDirName, testFN.get(0), testFN.get(1), testFN.get(2), testFN.get(3)).split(" ");
+        String[] extractArgs = String.format("-u %stest-archive.txt -x %s -x *-4.txt",
+                outDirName, testFN.get(1)).split(" ");
+
+        Tar.Main.main(testArgs);
+        Tar.Main.main(extractArgs);
+        Assert.assertFalse(new File(outDirName + testFN.get(0)).exists());
+        Assert.assertTrue(compareFileContent(testFN.get(1), outDirName + testFN.get(1)));
+        Assert.assertFalse(new File(outDirName + testFN.get(2)).exists());
+        Assert.assertTrue(compareFileContent(testFN.get(3), outDirName + testFN.get(3)));
+    }
+
+    @Test
+    public void mappedArchive() throws IOException {
+        for (int formatVersion : new int[] { 1, 2 }) {
+            String[] testArgs = String.format("-format %d -out %stest-archive.txt %s %s %s %s", formatVersion,
+                    outDirName, testFN.get(0), testFN.get(1), testFN.get(2), testFN.get(3)).split(" ");
+            Tar.Main.main(testArgs);
+            checkMappedArchive();
+            cleanTestDirectory();
+        }
+    }
+
+    private void checkMappedArchive() throws IOException {
+        // A tiny segment size makes the header and the entries cross segment boundaries
+        for (long segmentSize : new long[] { Constants.map_segment_size, 100 }) {
+            try (MappedArchive archive = new MappedArchive(outDirName + "test-archive.txt", segmentSize)) {
+                Assert.assertEquals(testFN, archive.getNames());
+                for (String filename : testFN) {
+                    byte[] expected = Files.readAllBytes(Paths.get(filename));
+
+                    ByteBuffer buffer = archive.buffer(filename);
+                    byte[] fromBuffer = new byte[buffer.remaining()];
+                    buffer.get(fromBuffer);
+                    Assert.assertArrayEquals(expected, fromBuffer);
+
+                    try (InputStream stream = archive.openStream(filename)) {
+                        Assert.assertArrayEquals(expected, stream.readAllBytes());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void streamArchive() throws IOException {
+        for (int formatVersion : new int[] { 1, 2 }) {
+            Archiver archiver = new Archiver(testFN, ArgParser.STANDARD_STREAM);
+            archiver.setFormatVersion(formatVersion);
+            ByteArrayOutputStream archiveBytes = new ByteArrayOutputStream();
+            archiver.archive(archiveBytes);
+
+            StreamArchive archive = new StreamArchive(new ByteArrayInputStream(archiveBytes.toByteArray()), "test");
+            archive.unzip(outDirName);
+            for (String filename : testFN) {
+                Assert.assertTrue(compareFileContent(filename, outDirName + filename));
+            }
+            cleanTestDirectory();
+        }
+    }
+
+    @Test
+    public void formatVersions() {
+        for (int formatVersion : new int[] { 1, 2 }) {
+            for (int threads : new int[] { 1, 3 }) {
+                String[] testArgs = String.format("-format %d -threads %d -out %stest-archive.txt %s %s %s %s",
+                        formatVersion, threads, outDirName,
+                        testFN.get(0), testFN.get(1), testFN.get(2), testFN.get(3)).split(" ");
+                Tar.Main.main(testArgs);
+                Tar.Main.main(unzipArgs);
+                for (String filename : testFN) {
+                    Assert.assertTrue(compareFileContent(filename, outDirName + filename));
+                }
+                cleanTestDirectory();
+            }
+        }
+    }
+
+    @Test
+    public void headerParser() throws IOException {
+        byte[] header = "strange name [1002] [12]\nbig [5000000000]\n  [0]\n".getBytes(Constants.headerEncoding);
+        EntryTable entries = HeaderParser.parseEntries(header, "test");
+        Assert.assertEquals(3, entries.size());
+        Assert.assertEquals("strange name [1002]", entries.name(0));
+        Assert.assertEquals(12L, entries.sizeOf(0));
+        Assert.assertEquals("big", entries.name(1));
+        Assert.assertEquals(5000000000L, entries.sizeOf(1));
+        Assert.assertEquals(" ", entries.name(2));
+        Assert.assertEquals(0L, entries.sizeOf(2));
+        Assert.assertEquals("dir/sub/file", HeaderParser.parseEntries("dir/sub/file [1]\n"
+                .getBytes(Constants.headerEncoding), "test").name(0));
+
+        for (String malformed : new String[] { "no size\n", "name[1]\n", "name [1x]\n", " [1]\n",
+                "name [99999999999999999999]\n", "../b [1]\n", "/b [1]\n", "a//b [1]\n", "a/./b [1]\n",
+                "a\\b [1]\n", "ok [1]\n\nok [2]\n" }) {
+            try {
+                HeaderParser.parseEntries(malformed.getBytes(Constants.headerEncoding), "test");
+                fail("Malformed header accepted: " + malformed);
+            } catch (IOException ioEx) {
+                Assert.assertEquals("Invalid header in filetest", ioEx.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void compression() throws IOException {
+        // Random bytes do not compress and are stored as is, an empty file neither
+        byte[] noise = new byte[100_000];
+        new Random().nextBytes(noise);
+        Files.write(Paths.get(tempDirName + "noise.bin"), noise);
+        new File(tempDirName + "empty-file.txt").createNewFile();
+        List<String> inputs = Arrays.asList(testFN.get(0), testFN.get(1), tempDirName + "noise.bin",
+                tempDirName + "empty-file.txt");
+
+        for (int threads : new int[] { 1, 3 }) {
+            String[] testArgs = String.format("-codec deflate -threads %d -out %stest-archive.txt %s %s %s %s",
+                    threads, outDirName, inputs.get(0), inputs.get(1), inputs.get(2), inputs.get(3)).split(" ");
+            Tar.Main.main(testArgs);
+            Tar.Main.main(unzipArgs);
+            for (String filename : inputs) {
+                Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+            }
+
+            try (MappedArchive archive = new MappedArchive(outDirName + "test-archive.txt")) {
+                try (InputStream stream = archive.openStream(testFN.get(0))) {
+                    Assert.assertArrayEquals(Files.readAllBytes(Paths.get(testFN.get(0))), stream.readAllBytes());
+                }
+                Assert.assertArrayEquals(noise, archive.openStream("noise.bin").readAllBytes());
+            }
+            cleanTestDirectory();
+        }
+
+        Archiver archiver = new Archiver(inputs, ArgParser.STANDARD_STREAM);
+        archiver.setCodec(Codecs.forName("deflate"));
+        ByteArrayOutputStream archiveBytes = new ByteArrayOutputStream();
+        archiver.archive(archiveBytes);
+        new StreamArchive(new ByteArrayInputStream(archiveBytes.toByteArray()), "test").unzip(outDirName);
+        for (String filename : inputs) {
+            Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+        }
+
+        archiver.setFormatVersion(1);
+        try {
+            archiver.archive(new ByteArrayOutputStream());
+            fail("Compressed entries cannot be written in format 1");
+        } catch (IllegalArgumentException iaEx) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void blockCompression() throws IOException {
+        // Half text, half noise, so some blocks compress and some are stored as they are
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 100_000) {
+            text.append(RandomStringUtils.randomAlphabetic(minLineLen, maxLineLen)).append('\n');
+        }
+        byte[] noise = new byte[100_001];
+        new Random().nextBytes(noise);
+        byte[] content = Arrays.copyOf(text.toString().getBytes(Constants.headerEncoding), 200_001);
+        System.arraycopy(noise, 0, content, 100_000, 100_001);
+        Files.write(Paths.get(tempDirName + "large-file.bin"), content);
+        List<String> inputs = Arrays.asList(testFN.get(0), tempDirName + "large-file.bin", testFN.get(1));
+
+        for (int threads : new int[] { 1, 3 }) {
+            Archiver archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+            archiver.setCodec(Codecs.forName("deflate"));
+            archiver.setBlockSize(1024);
+            archiver.setThreads(threads);
+            archiver.archive();
+
+            Archive archive = new Archive(outDirName + "test-archive.txt");
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, 1000, 1000 + 5000),
+                    archive.readRange("large-file.bin", 1000, 5000));
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, 200_000, 200_001),
+                    archive.readRange("large-file.bin", 200_000, 1));
+            archive.setThreads(threads);
+            archive.unzip();
+            for (String filename : inputs) {
+                Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+            }
+
+            try (MappedArchive mapped = new MappedArchive(outDirName + "test-archive.txt")) {
+                Assert.assertArrayEquals(content, mapped.openStream("large-file.bin").readAllBytes());
+            }
+            cleanTestDirectory();
+        }
+
+        Archiver archiver = new Archiver(inputs, ArgParser.STANDARD_STREAM);
+        archiver.setCodec(Codecs.forName("deflate"));
+        archiver.setBlockSize(1024);
+        ByteArrayOutputStream archiveBytes = new ByteArrayOutputStream();
+        archiver.archive(archiveBytes);
+        new StreamArchive(new ByteArrayInputStream(archiveBytes.toByteArray()), "test").unzip(outDirName);
+        for (String filename : inputs) {
+            Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+        }
+    }
+
+    @Test
+    public void deduplication() throws IOException {
+        // The second file is the first with a few bytes inserted in the middle, the third repeats the first
+        byte[] original = new byte[300_000];
+        new Random().nextBytes(original);
+        byte[] edited = Arrays.copyOf(original, original.length + 100);
+        System.arraycopy(original, 150_000, edited, 150_100, 150_000);
+        Files.write(Paths.get(tempDirName + "original.bin"), original);
+        Files.write(Paths.get(tempDirName + "edited.bin"), edited);
+        Files.write(Paths.get(tempDirName + "copy.bin"), original);
+        List<String> inputs = Arrays.asList(tempDirName + "original.bin", tempDirName + "edited.bin",
+                tempDirName + "copy.bin");
+
+        for (int threads : new int[] { 1, 3 }) {
+            Archiver archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+            archiver.setDeduplicate(true);
+            archiver.setThreads(threads);
+            archiver.archive();
+            // Only the chunks around the insertion are stored twice
+            Assert.assertTrue(new File(outDirName + "test-archive.txt").length() < original.length * 3 / 2);
+
+            Archive archive = new Archive(outDirName + "test-archive.txt");
+            Assert.assertArrayEquals(Arrays.copyOfRange(edited, 149_000, 152_000),
+                    archive.readRange("edited.bin", 149_000, 3000));
+            archive.setThreads(threads);
+            archive.unzip();
+            for (String filename : inputs) {
+                Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+            }
+
+            try (MappedArchive mapped = new MappedArchive(outDirName + "test-archive.txt")) {
+                Assert.assertArrayEquals(edited, mapped.openStream("edited.bin").readAllBytes());
+            }
+            cleanTestDirectory();
+        }
+
+        // A file changed after it was chunked, keeping its size, must not store new bytes under the old hashes
+        Archiver archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+        archiver.setDeduplicate(true);
+        archiver.setListener(new ProgressListener() {
+            @Override
+            public void entryStarted(String name, long size) {
+                if (name.equals("edited.bin")) {
+                    try {
+                        Files.write(Paths.get(tempDirName + "edited.bin"), new byte[edited.length]);
+                    } catch (IOException ioEx) {
+                        throw new UncheckedIOException(ioEx);
+                    }
+                }
+            }
+        });
+        try {
+            archiver.archive();
+            fail("A changed file was stored under the hashes of its old chunks");
+        } catch (IOException ioEx) {
+            Assert.assertTrue(ioEx.getMessage().contains("edited.bin changed while archiving"));
+        }
+    }
+
+    @Test
+    public void checksums() throws IOException {
+        List<String> inputs = Arrays.asList(testFN.get(0), testFN.get(1), testFN.get(2));
+        // Sequential, parallel, compressed in blocks and deduplicated archives all carry checksums
+        for (int mode = 0; mode < 4; mode++) {
+            Archiver archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+            archiver.setThreads(mode == 1 ? 3 : 1);
+            if (mode == 2) {
+                archiver.setCodec(Codecs.forName("deflate"));
+                archiver.setBlockSize(1024);
+            }
+            archiver.setDeduplicate(mode == 3);
+            archiver.archive();
+            Assert.assertEquals(0, Tar.Main.run(String.format("-verify %stest-archive.txt -threads 2", outDirName)
+                    .split(" ")));
+            new Archive(outDirName + "test-archive.txt").verify();
+            cleanTestDirectory();
+        }
+
+        // Damage one byte in the middle of the second file's contents
+        Archiver archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+        archiver.archive();
+        byte[] archiveBytes = Files.readAllBytes(Paths.get(outDirName + "test-archive.txt"));
+        byte[] content = Files.readAllBytes(Paths.get(testFN.get(1)));
+        int position = indexOf(archiveBytes, content) + content.length / 2;
+        archiveBytes[position] ^= 1;
+        Files.write(Paths.get(outDirName + "test-archive.txt"), archiveBytes);
+
+        try {
+            new Archive(outDirName + "test-archive.txt").verify();
+            fail("Damaged entry passed verification");
+        } catch (IOException ioEx) {
+            Assert.assertTrue(ioEx.getMessage().contains(testFN.get(1)));
+            Assert.assertFalse(ioEx.getMessage().contains(testFN.get(0)));
+            Assert.assertTrue(ioEx.getMessage().endsWith(" of file " + outDirName + "test-archive.txt"));
+        }
+        Assert.assertEquals(1, Tar.Main.run(String.format("-verify %stest-archive.txt", outDirName).split(" ")));
+        try {
+            new Archive(outDirName + "test-archive.txt").unzip();
+            fail("Damaged entry was extracted without an error");
+        } catch (IOException ioEx) {
+            Assert.assertTrue(ioEx.getMessage().contains("Checksum mismatch"));
+        }
+        try {
+            new StreamArchive(new ByteArrayInputStream(archiveBytes), "test").unzip(outDirName);
+            fail("Damaged entry was extracted without an error");
+        } catch (IOException ioEx) {
+            Assert.assertTrue(ioEx.getMessage().contains("Checksum mismatch"));
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i <= data.length - part.length; i++) {
+            if (Arrays.equals(data, i, i + part.length, part, 0, part.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void append() throws IOException {
+        String archiveName = outDirName + "test-archive.txt";
+        Tar.Main.main(String.format("-out %s %s", archiveName, testFN.get(0)).split(" "));
+        byte[] originalContents = Files.readAllBytes(Paths.get(archiveName));
+        // Everything up to the old index stays in place
+        int indexOffset = (int) ByteBuffer.wrap(originalContents, originalContents.length - FormatV2.trailerSize, 8)
+                .getLong();
+
+        // Sequential, parallel and compressed appends
+        Tar.Main.main(String.format("-append -out %s %s", archiveName, testFN.get(1)).split(" "));
+        Archiver archiver = new Archiver(Arrays.asList(testFN.get(2)), archiveName);
+        archiver.setThreads(3);
+        archiver.append();
+        archiver = new Archiver(Arrays.asList(testFN.get(3)), archiveName);
+        archiver.setCodec(Codecs.forName("deflate"));
+        archiver.append();
+
+        // Contents already in the archive are not rewritten
+        byte[] appended = Files.readAllBytes(Paths.get(archiveName));
+        Assert.assertTrue(Arrays.equals(originalContents, 0, indexOffset, appended, 0, indexOffset));
+        new Archive(archiveName).verify();
+        Tar.Main.main(unzipArgs);
+        for (String filename : testFN) {
+            Assert.assertTrue(compareFileContent(filename, outDirName + filename));
+        }
+
+        // A name that is already taken leaves the archive as it was
+        try {
+            new Archiver(Arrays.asList(testFN.get(1)), archiveName).append();
+            fail("Entry was appended twice");
+        } catch (IllegalArgumentException iaEx) {
+            Assert.assertArrayEquals(appended, Files.readAllBytes(Paths.get(archiveName)));
+        }
+
+        // A file that changes while it is appended is rolled back
+        Files.write(Paths.get(tempDirName + "growing.txt"), new byte[1000]);
+        archiver = new Archiver(Arrays.asList(tempDirName + "growing.txt"), archiveName);
+        Files.write(Paths.get(tempDirName + "growing.txt"), new byte[2000]);
+        try {
+            archiver.append();
+            fail("Changed file was appended");
+        } catch (IOException ioEx) {
+            Assert.assertArrayEquals(appended, Files.readAllBytes(Paths.get(archiveName)));
+        }
+    }
+
+    @Test
+    public void directories() throws IOException {
+        // Nested directories, and one directory large enough to be walked in parallel
+        List<String> relativeNames = new ArrayList<>(Arrays.asList(
+                "a.txt", "sub/b.txt", "sub/deeper/c.txt", "sub/deeper/d.txt"));
+        for (int i = 0; i < 300; i++) {
+            relativeNames.add(String.format("many/%03d.txt", i));
+        }
+        for (String name : relativeNames) {
+            File file = new File(tempDirName + "tree" + File.separator + name);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), RandomStringUtils.randomAlphabetic(0, 500).getBytes(Constants.headerEncoding));
+        }
+
+        for (int format : new int[] { 1, 2 }) {
+            Archiver archiver = new Archiver(Arrays.asList(tempDirName + "tree", testFN.get(0)),
+                    outDirName + "test-archive.txt");
+            archiver.setFormatVersion(format);
+            archiver.setThreads(format);
+            archiver.archive();
+            Tar.Main.main(unzipArgs);
+            for (String name : relativeNames) {
+                Assert.assertTrue(compareFileContent(tempDirName + "tree" + File.separator + name,
+                        outDirName + "tree" + File.separator + name));
+            }
+            Assert.assertTrue(compareFileContent(testFN.get(0), outDirName + testFN.get(0)));
+
+            try (MappedArchive mapped = new MappedArchive(outDirName + "test-archive.txt")) {
+                Assert.assertEquals("tree/a.txt", mapped.getNames().get(0));
+                Assert.assertEquals("tree/many/000.txt", mapped.getNames().get(1));
+                Assert.assertTrue(mapped.getNames().contains("tree/sub/deeper/c.txt"));
+            }
+            cleanTestDirectory();
+        }
+
+        // Selected entries and streamed archives get their directories too
+        Archiver archiver = new Archiver(Arrays.asList(tempDirName + "tree"), outDirName + "test-archive.txt");
+        archiver.archive();
+        new Archive(outDirName + "test-archive.txt").extract(Arrays.asList("tree/sub/**"));
+        Assert.assertTrue(compareFileContent(tempDirName + "tree" + File.separator + "sub" + File.separator
+                + "deeper" + File.separator + "d.txt", outDirName + "tree" + File.separator + "sub"
+                + File.separator + "deeper" + File.separator + "d.txt"));
+        Assert.assertFalse(new File(outDirName + "tree" + File.separator + "many").exists());
+        cleanTestDirectory();
+
+        archiver = new Archiver(Arrays.asList(tempDirName + "tree"), ArgParser.STANDARD_STREAM);
+        ByteArrayOutputStream archiveBytes = new ByteArrayOutputStream();
+        archiver.archive(archiveBytes);
+        new StreamArchive(new ByteArrayInputStream(archiveBytes.toByteArray()), "test").unzip(outDirName);
+        for (String name : relativeNames) {
+            Assert.assertTrue(compareFileContent(tempDirName + "tree" + File.separator + name,
+                    outDirName + "tree" + File.separator + name));
+        }
+    }
+
+    @Test
+    public void bufferPool() throws IOException {
+        BufferPool pool = new BufferPool(4096, 1);
+        ByteBuffer buffer = pool.acquire();
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(4096, buffer.capacity());
+        pool.release(buffer);
+        Assert.assertSame(buffer, pool.acquire());
+
+        // Small files share gathering writes, larger ones are copied through the pooled buffers
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            String name = tempDirName + "small-" + i + ".txt";
+            Files.write(Paths.get(name), RandomStringUtils.randomAlphabetic(0, i % 10 == 9 ? 20_000 : 300)
+                    .getBytes(Constants.headerEncoding));
+            inputs.add(name);
+        }
+        BufferPool.configure(4096, 2);
+        try {
+            for (int format : new int[] { 1, 2 }) {
+                Archiver archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+                archiver.setFormatVersion(format);
+                archiver.setCopyEngine(CopyEngine.STREAM);
+                archiver.archive();
+                Archive archive = new Archive(outDirName + "test-archive.txt");
+                archive.setCopyEngine(CopyEngine.STREAM);
+                archive.unzip();
+                for (String filename : inputs) {
+                    Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+                }
+                if (format == 2) {
+                    new Archive(outDirName + "test-archive.txt").verify();
+                }
+                cleanTestDirectory();
+            }
+        } finally {
+            BufferPool.configure(Constants.pool_buffer_size, Constants.pool_buffers);
+        }
+    }
+
+    @Test
+    public void metrics() throws IOException {
+        List<String> inputs = new ArrayList<>();
+        long totalBytes = 0;
+        for (int i = 0; i < 6; i++) {
+            String name = tempDirName + "metrics-" + i + ".txt";
+            byte[] contents = RandomStringUtils.randomAlphabetic(100, 200_000).getBytes(Constants.headerEncoding);
+            Files.write(Paths.get(name), contents);
+            inputs.add(name);
+            totalBytes += contents.length;
+        }
+
+        // Listeners are called from the workers
+        AtomicLong finished = new AtomicLong();
+        AtomicLong finishedBytes = new AtomicLong();
+        Archiver archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+        archiver.setThreads(3);
+        archiver.setListener(new ProgressListener() {
+            @Override
+            public void entryFinished(String name, long size) {
+                finished.incrementAndGet();
+                finishedBytes.addAndGet(size);
+            }
+        });
+        archiver.archive();
+        Assert.assertEquals(inputs.size(), finished.get());
+        Assert.assertEquals(totalBytes, finishedBytes.get());
+        Assert.assertEquals(inputs.size(), archiver.getMetrics().entries());
+        Assert.assertEquals(totalBytes, archiver.getMetrics().bytes());
+        Assert.assertEquals(totalBytes, archiver.getMetrics().totalBytes());
+
+        // Every extracted entry is recorded as a JFR event
+        File recordingFile = new File(outDirName + "entries.jfr");
+        Archive archive = new Archive(outDirName + "test-archive.txt");
+        archive.setCopyEngine(CopyEngine.STREAM);
+        try (Recording recording = new Recording()) {
+            recording.enable("tar.Entry").withThreshold(Duration.ZERO);
+            recording.start();
+            archive.unzip();
+            recording.stop();
+            recording.dump(recordingFile.toPath());
+        }
+        Assert.assertEquals(totalBytes, archive.getMetrics().bytes());
+        Assert.assertTrue(archive.getMetrics().readNanos() > 0);
+        int events = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile.toPath())) {
+            if (event.getEventType().getName().equals("tar.Entry")) {
+                Assert.assertEquals("extract", event.getString("operation"));
+                events++;
+            }
+        }
+        Assert.assertEquals(inputs.size(), events);
+        recordingFile.delete();
+    }
+
+    @Test
+    public void pipelinedCopy() throws IOException, InterruptedException {
+        byte[] contents = new byte[100_000];
+        new Random().nextBytes(contents);
+        CRC32C expected = new CRC32C();
+        expected.update(contents);
+
+        BufferPool.configure(4096, 2);
+        try {
+            for (int depth : new int[] { 0, 1, 4 }) {
+                ByteArrayOutputStream copied = new ByteArrayOutputStream();
+                CRC32C checksum = new CRC32C();
+                PipelinedCopy.copy(new ByteArrayInputStream(contents), copied, contents.length, checksum, null, depth);
+                Assert.assertArrayEquals(contents, copied.toByteArray());
+                Assert.assertEquals(expected.getValue(), checksum.getValue());
+            }
+            // Failures of the reader thread reach the caller
+            try {
+                PipelinedCopy.copy(new ByteArrayInputStream(contents), OutputStream.nullOutputStream(),
+                        contents.length + 1, null, null, 2);
+                fail();
+            } catch (EOFException eofEx) {
+                // Expected
+            }
+            // A failing writer stops the reader before the copy returns, so the checksum does not change after
+            CRC32C stopped = new CRC32C();
+            OutputStream failing = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("Disk full");
+                }
+            };
+            try {
+                PipelinedCopy.copy(new ByteArrayInputStream(contents), failing, contents.length, stopped, null, 2);
+                fail();
+            } catch (IOException ioEx) {
+                Assert.assertEquals("Disk full", ioEx.getMessage());
+            }
+            long checksumAtFailure = stopped.getValue();
+            Thread.sleep(50);
+            Assert.assertEquals(checksumAtFailure, stopped.getValue());
+
+            // Compressed entries and streamed archives go through the pipeline
+            Files.write(Paths.get(tempDirName + "pipelined.bin"), contents);
+            Archiver archiver = new Archiver(Arrays.asList(tempDirName + "pipelined.bin"), ArgParser.STANDARD_STREAM);
+            archiver.setCodec(Codecs.forName("deflate"));
+            archiver.setPipelineDepth(2);
+            ByteArrayOutputStream archiveBytes = new ByteArrayOutputStream();
+            archiver.archive(archiveBytes);
+            StreamArchive archive = new StreamArchive(new ByteArrayInputStream(archiveBytes.toByteArray()), "test");
+            archive.setPipelineDepth(2);
+            archive.unzip(outDirName);
+            Assert.assertArrayEquals(contents, Files.readAllBytes(Paths.get(outDirName + "pipelined.bin")));
+        } finally {
+            BufferPool.configure(Constants.pool_buffer_size, Constants.pool_buffers);
+        }
+    }
+
+    @Test
+    public void tarService() throws Exception {
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String name = tempDirName + "service-" + i + ".txt";
+            Files.write(Paths.get(name), RandomStringUtils.randomAlphabetic(1000, 100_000)
+                    .getBytes(Constants.headerEncoding));
+            inputs.add(name);
+        }
+
+        // Less memory than all the jobs estimate together, so some of them wait for it
+        try (TarService service = new TarService(3, 16L * Constants.mb)) {
+            service.setThreads(2);
+            List<CompletableFuture<Metrics>> archived = new ArrayList<>();
+            for (int i = 0; i < inputs.size(); i++) {
+                Archiver archiver = new Archiver(Arrays.asList(inputs.get(i)), outDirName + "service-" + i + ".tar");
+                archiver.setThreads(2);
+                if (i % 2 == 0) {
+                    archiver.setCodec(Codecs.forName("deflate"));
+                }
+                archived.add(service.archive(archiver));
+            }
+            for (int i = 0; i < inputs.size(); i++) {
+                Assert.assertEquals(new File(inputs.get(i)).length(), archived.get(i).get().bytes());
+            }
+
+            List<CompletableFuture<Metrics>> extracted = new ArrayList<>();
+            for (int i = 0; i < inputs.size(); i++) {
+                extracted.add(service.unzip(outDirName + "service-" + i + ".tar"));
+                extracted.add(service.verify(outDirName + "service-" + i + ".tar"));
+            }
+            CompletableFuture.allOf(extracted.toArray(new CompletableFuture<?>[0])).get();
+            for (String filename : inputs) {
+                Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+            }
+
+            // An absolute archive path extracts next to the archive as well
+            String absoluteName = new File(outDirName + "service-0.tar").getAbsolutePath();
+            String extractedName = outDirName + new File(inputs.get(0)).getName();
+            Files.delete(Paths.get(extractedName));
+            service.unzip(absoluteName).get();
+            Assert.assertTrue(compareFileContent(inputs.get(0), extractedName));
+            Files.delete(Paths.get(extractedName));
+            service.extract(absoluteName, Arrays.asList("*.txt")).get();
+            Assert.assertTrue(compareFileContent(inputs.get(0), extractedName));
+
+            // Failures come back through the future instead of ending the process
+            try {
+                service.unzip(outDirName + "missing.tar").get();
+                fail();
+            } catch (ExecutionException exEx) {
+                Assert.assertTrue(exEx.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void sparseFiles() throws IOException {
+        // 16 MB with data at the start, in the middle and a hole at the end
+        String sparseName = tempDirName + "sparse.img";
+        byte[] data = RandomStringUtils.randomAlphabetic(10_000).getBytes(Constants.headerEncoding);
+        try (RandomAccessFile image = new RandomAccessFile(sparseName, "rw")) {
+            image.setLength(16L * Constants.mb);
+            image.write(data);
+            image.seek(5L * Constants.mb + 100);
+            image.write(data);
+        }
+        byte[] expected = Files.readAllBytes(Paths.get(sparseName));
+
+        for (int threads : new int[] { 1, 3 }) {
+            Archiver archiver = new Archiver(Arrays.asList(sparseName, testFN.get(0)), outDirName + "test-archive.txt");
+            archiver.setSparse(true);
+            archiver.setThreads(threads);
+            archiver.archive();
+            Assert.assertTrue(new File(outDirName + "test-archive.txt").length() < Constants.mb);
+
+            Archive archive = new Archive(outDirName + "test-archive.txt");
+            archive.unzip();
+            Assert.assertArrayEquals(expected, Files.readAllBytes(Paths.get(outDirName + "sparse.img")));
+            Assert.assertTrue(compareFileContent(testFN.get(0), outDirName + new File(testFN.get(0)).getName()));
+            new Archive(outDirName + "test-archive.txt").verify();
+
+            // Ranges across a hole read zeros in it
+            byte[] range = new Archive(outDirName + "test-archive.txt").readRange("sparse.img", 9_000, 2_000);
+            Assert.assertArrayEquals(Arrays.copyOfRange(expected, 9_000, 11_000), range);
+            try (MappedArchive mapped = new MappedArchive(outDirName + "test-archive.txt");
+                    InputStream in = mapped.openStream("sparse.img")) {
+                Assert.assertArrayEquals(expected, in.readAllBytes());
+            }
+            cleanTestDirectory();
+        }
+
+        Archiver archiver = new Archiver(Arrays.asList(sparseName), ArgParser.STANDARD_STREAM);
+        archiver.setSparse(true);
+        ByteArrayOutputStream archiveBytes = new ByteArrayOutputStream();
+        archiver.archive(archiveBytes);
+        new StreamArchive(new ByteArrayInputStream(archiveBytes.toByteArray()), "test").unzip(outDirName);
+        Assert.assertArrayEquals(expected, Files.readAllBytes(Paths.get(outDirName + "sparse.img")));
+    }
+
+    @Test
+    public void syncExtract() throws IOException {
+        List<String> inputs = new ArrayList<>(testFN);
+        String sparseName = tempDirName + "sync.img";
+        try (RandomAccessFile image = new RandomAccessFile(sparseName, "rw")) {
+            image.setLength(Constants.mb);
+            image.seek(300_000);
+            image.write(new byte[] { 1, 2, 3 });
+        }
+        inputs.add(sparseName);
+        for (int format : new int[] { 1, 2 }) {
+            Archiver archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+            archiver.setFormatVersion(format);
+            archiver.setSparse(format == 2);
+            archiver.archive();
+            new Archive(outDirName + "test-archive.txt").unzip();
+
+            // Same size, different contents, and a file that is gone
+            String changed = outDirName + new File(testFN.get(0)).getName();
+            byte[] contents = Files.readAllBytes(Paths.get(changed));
+            contents[0] ^= 1;
+            Files.write(Paths.get(changed), contents);
+            new File(outDirName + new File(testFN.get(1)).getName()).delete();
+            long untouched = new File(outDirName + new File(testFN.get(2)).getName()).lastModified() - 10_000;
+            new File(outDirName + new File(testFN.get(2)).getName()).setLastModified(untouched);
+
+            Archive archive = new Archive(outDirName + "test-archive.txt");
+            archive.setSync(true);
+            archive.setThreads(2);
+            archive.unzip();
+            Assert.assertEquals(inputs.size() - 2, archive.getMetrics().skippedEntries());
+            Assert.assertEquals(untouched, new File(outDirName + new File(testFN.get(2)).getName()).lastModified());
+            for (String filename : inputs) {
+                Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+            }
+            cleanTestDirectory();
+        }
+    }
+
+    @Test
+    public void volumes() throws IOException {
+        List<String> directories = Arrays.asList(tempDirName + "disk1", tempDirName + "disk2");
+        for (String directory : directories) {
+            new File(directory).mkdirs();
+        }
+        // 10 KB each, so every volume holds one
+        List<String> inputs = new ArrayList<>();
+        Random random = new Random(22);
+        for (int i = 0; i < 3; i++) {
+            byte[] contents = new byte[10 * 1024];
+            random.nextBytes(contents);
+            inputs.add(tempDirName + "volume-input-" + i);
+            Files.write(Paths.get(inputs.get(i)), contents);
+        }
+        Archiver archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+        archiver.setVolumeSize(16 * 1024);
+        archiver.setVolumeDirectories(directories);
+        archiver.setThreads(3);
+        archiver.archive();
+        Assert.assertTrue(new File(tempDirName + "disk1" + File.separator + "test-archive.txt.v001").isFile());
+        Assert.assertTrue(new File(tempDirName + "disk2" + File.separator + "test-archive.txt.v002").isFile());
+        Assert.assertTrue(new File(tempDirName + "disk1" + File.separator + "test-archive.txt.v003").isFile());
+
+        Archive archive = new Archive(outDirName + "test-archive.txt");
+        archive.setVolumeDirectories(directories);
+        archive.setThreads(3);
+        archive.unzip();
+        for (String filename : inputs) {
+            Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+        }
+        archive.verify();
+        try {
+            new Archive(outDirName + "test-archive.txt").verify();
+            fail("Volumes were found without their directories");
+        } catch (IOException ioEx) {
+            // Expected
+        }
+        cleanTestDirectory();
+
+        // Files larger than a volume continue in the next ones
+        archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+        archiver.setVolumeSize(4 * 1024);
+        archiver.setThreads(3);
+        archiver.archive();
+        for (int volume = 1; volume <= 8; volume++) {
+            File file = new File(String.format("%stest-archive.txt.v%03d", outDirName, volume));
+            Assert.assertTrue(file.isFile());
+            Assert.assertTrue(file.length() <= 4 * 1024);
+        }
+        archive = new Archive(outDirName + "test-archive.txt");
+        archive.setThreads(3);
+        archive.unzip();
+        for (String filename : inputs) {
+            Assert.assertTrue(compareFileContent(filename, outDirName + new File(filename).getName()));
+        }
+        new Archive(outDirName + "test-archive.txt").verify();
+        byte[] expected = Files.readAllBytes(Paths.get(inputs.get(1)));
+        Assert.assertArrayEquals(Arrays.copyOfRange(expected, 3_000, 9_000),
+                new Archive(outDirName + "test-archive.txt").readRange("volume-input-1", 3_000, 6_000));
+
+        // Volumes too small for a record are rejected
+        cleanTestDirectory();
+        archiver = new Archiver(inputs, outDirName + "test-archive.txt");
+        archiver.setVolumeSize(16);
+        try {
+            archiver.archive();
+            fail("A record was split across volumes");
+        } catch (IllegalArgumentException iaEx) {
+            Assert.assertFalse(new File(outDirName + "test-archive.txt").exists());
+        }
+    }
+
+    @Test
+    public void entryTable() {
+        EntryTable table = new EntryTable(4);
+        for (int i = 0; i < 100_000; i++) {
+            table.add(new Entry("dir/\u0444\u0430\u0439\u043b-" + i, (long) i << 32, i));
+        }
+        Entry compressed = new Entry("compressed", 10);
+        compressed.codec = 1;
+        compressed.storedSize = 4;
+        compressed.blockSize = 8;
+        compressed.blockLengths = new int[] { 3, -2 };
+        table.add(compressed);
+        Entry chunked = new Entry("chunked", 12);
+        chunked.flags = 3;
+        chunked.volume = 2;
+        chunked.checksum = 42;
+        chunked.chunkOffsets = new long[] { 0, 1L << 40 };
+        chunked.chunkLengths = new long[] { 5, 7 };
+        chunked.chunkVolumes = new int[] { 2, 5 };
+        chunked.dataOffsets = new long[0];
+        chunked.dataLengths = new long[0];
+        table.add(chunked);
+        table.add(new Entry("dir/\u0444\u0430\u0439\u043b-7", 1));
+
+        Assert.assertEquals(100_003, table.size());
+        for (int i = 0; i < 100_000; i += 997) {
+            Assert.assertEquals(i, table.find("dir/\u0444\u0430\u0439\u043b-" + i));
+            Entry entry = table.entry(i);
+            Assert.assertEquals("dir/\u0444\u0430\u0439\u043b-" + i, entry.name);
+            Assert.assertEquals((long) i << 32, entry.size);
+            Assert.assertEquals(i, entry.offset);
+            Assert.assertEquals((long) i << 32, table.sizeOf(i));
+            Assert.assertEquals(i, table.offsetOf(i));
+        }
+        // The first entry wins when names repeat
+        Assert.assertEquals(7, table.find("dir/\u0444\u0430\u0439\u043b-7"));
+        Assert.assertEquals(-1, table.find("dir/\u0444\u0430\u0439\u043b-100000"));
+        Assert.assertEquals("dir/\u0444\u0430\u0439\u043b-7", table.names().get(100_002));
+        // The estimate covers the columns, the names and the lookup table
+        Assert.assertTrue(table.heapBytes() > 100_000 * (3 * Long.BYTES + 2 * Integer.BYTES + 15));
+
+        // Details come back from the pools
+        Entry row = table.entry(table.find("compressed"));
+        Assert.assertEquals(1, row.codec);
+        Assert.assertEquals(4, row.storedSize);
+        Assert.assertEquals(8, table.blockSizeOf(100_000));
+        Assert.assertArrayEquals(new int[] { 3, -2 }, row.blockLengths);
+        Assert.assertNull(row.chunkOffsets);
+        Assert.assertNull(row.dataOffsets);
+        row = table.entry(table.find("chunked"));
+        Assert.assertEquals(3, row.flags);
+        Assert.assertEquals(2, table.volumeOf(100_001));
+        Assert.assertEquals(42, table.checksumOf(100_001));
+        Assert.assertEquals(12, row.storedSize);
+        Assert.assertArrayEquals(new long[] { 0, 1L << 40 }, row.chunkOffsets);
+        Assert.assertArrayEquals(new long[] { 5, 7 }, row.chunkLengths);
+        Assert.assertArrayEquals(new int[] { 2, 5 }, row.chunkVolumes);
+        Assert.assertEquals(0, row.dataOffsets.length);
+        Assert.assertNull(row.blockLengths);
+        Assert.assertEquals(0, table.volumeOf(0));
+
+        // Rows are copies, only setOffset changes the table
+        row = table.entry(100_000);
+        Assert.assertNotSame(row, table.entry(100_000));
+        row.offset = 5;
+        row.blockLengths[0] = 9;
+        compressed.storedSize = 6;
+        Assert.assertEquals(0, table.offsetOf(100_000));
+        Assert.assertEquals(3, table.entry(100_000).blockLengths[0]);
+        Assert.assertEquals(4, table.entry(100_000).storedSize);
+        table.setOffset(100_000, 99);
+        Assert.assertEquals(99, table.offsetOf(100_000));
+        Assert.assertEquals(99, table.entry(100_000).offset);
+    }
+
+    @Test
+    public void repeatedNames() throws IOException {
+        for (String directory : new String[] { "a", "b" }) {
+            new File(tempDirName + directory).mkdirs();
+            Files.write(Paths.get(tempDirName + directory, "same.bin"), directory.getBytes());
+        }
+        try {
+            new Archiver(Arrays.asList(tempDirName + "a" + File.separator + "same.bin",
+                    tempDirName + "b" + File.separator + "same.bin"), outDirName + "test-archive.txt");
+            fail("Two files were stored under one name");
+        } catch (IllegalArgumentException iaEx) {
+            // Expected
+        }
+
+        // Archives written elsewhere may still repeat names, the last entry wins
+        StringBuilder contents = new StringBuilder();
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            header.append(i % 2 == 0 ? "same.bin" : "other-" + i).append(" [4]\n");
+            contents.append(String.format("%04d", i));
+        }
+        Files.write(Paths.get(outDirName + "test-archive.txt"), ("header [" + header.length() + "]\n" + header
+                + contents).getBytes(Constants.headerEncoding));
+        Archive archive = new Archive(outDirName + "test-archive.txt");
+        archive.setThreads(4);
+        archive.unzip();
+        Assert.assertEquals("0048", Files.readString(Paths.get(outDirName + "same.bin")));
+        Assert.assertEquals("0049", Files.readString(Paths.get(outDirName + "other-49")));
+        cleanTestDirectory();
+    }
+
+    @Test
+    public void archivePaths() throws IOException {
+        Archiver archiver = new Archiver(Arrays.asList(testFN.get(0), testFN.get(1)), outDirName + "test-archive.txt");
+        archiver.archive();
+
+        // Entries go next to the archive, whether it is given by a relative or an absolute path
+        String absoluteName = new File(outDirName + "test-archive.txt").getAbsolutePath();
+        for (String archiveName : new String[] { outDirName + "test-archive.txt", absoluteName }) {
+            for (int threads : new int[] { 1, 3 }) {
+                Archive archive = new Archive(archiveName);
+                archive.setThreads(threads);
+                archive.unzip();
+                for (String filename : Arrays.asList(testFN.get(0), testFN.get(1))) {
+                    Assert.assertTrue(compareFileContent(filename, outDirName + filename));
+                    Files.delete(Paths.get(outDirName + filename));
+                }
+            }
+            new Archive(archiveName).extract(Arrays.asList(testFN.get(1)));
+            Assert.assertTrue(compareFileContent(testFN.get(1), outDirName + testFN.get(1)));
+            Files.delete(Paths.get(outDirName + testFN.get(1)));
+        }
+    }
+
+    @Test
+    public void unknownFields() throws IOException {
+        for (int length : new int[] { 3, Integer.MAX_VALUE }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeShort(4);
+            record.writeBytes("name");
+            record.writeInt(0);
+            record.writeLong(42);
+            record.writeShort(1);
+            record.writeShort(999);
+            record.writeInt(length);
+            record.write(new byte[] { 1, 2, 3 });
+            try {
+                Entry entry = FormatV2.readLocalHeader(new ByteArrayInputStream(bytes.toByteArray()), "test");
+                Assert.assertEquals(3, length);
+                Assert.assertEquals(42, entry.size);
+            } catch (IOException ioEx) {
+                // A field longer than the record is not read into memory
+                Assert.assertEquals(Integer.MAX_VALUE, length);
+                Assert.assertEquals("Invalid header in filetest", ioEx.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void interruptedAppend() throws IOException {
+        String archiveName = outDirName + "test-archive.txt";
+        new Archiver(Arrays.asList(testFN.get(0), testFN.get(1)), archiveName).archive();
+
+        // What a process killed in the middle of an append leaves behind: the old index saved,
+        // part of the new contents written over it and no trailer
+        byte[] archiveBytes = Files.readAllBytes(Paths.get(archiveName));
+        long indexOffset;
+        try (FileChannel channel = FileChannel.open(Paths.get(archiveName))) {
+            indexOffset = FormatV2.findIndex(channel, archiveName);
+        }
+        UndoFile.save(archiveName, Arrays.copyOfRange(archiveBytes, (int) indexOffset, archiveBytes.length));
+        try (RandomAccessFile archive = new RandomAccessFile(archiveName, "rw")) {
+            archive.setLength(indexOffset);
+            archive.seek(indexOffset);
+            archive.write(RandomStringUtils.randomAscii(5000).getBytes(Constants.headerEncoding));
+        }
+
+        try (MappedArchive mapped = new MappedArchive(archiveName)) {
+            Assert.assertEquals(Arrays.asList(testFN.get(0), testFN.get(1)), mapped.getNames());
+        }
+        new Archive(archiveName).verify();
+
+        Archiver archiver = new Archiver(Arrays.asList(testFN.get(2)), archiveName);
+        archiver.append();
+        Assert.assertFalse(Files.exists(UndoFile.path(archiveName)));
+        new Archive(archiveName).unzip();
+        for (String filename : testFN.subList(0, 3)) {
+            Assert.assertTrue(compareFileContent(filename, outDirName + filename));
+        }
+        cleanTestDirectory();
+
+        // An undo file left by an earlier archive of the same name is not taken for the index of another one
+        new Archiver(Arrays.asList(testFN.get(0), testFN.get(1)), archiveName).archive();
+        try (FileChannel channel = FileChannel.open(Paths.get(archiveName))) {
+            indexOffset = FormatV2.findIndex(channel, archiveName);
+        }
+        archiveBytes = Files.readAllBytes(Paths.get(archiveName));
+        UndoFile.save(archiveName, Arrays.copyOfRange(archiveBytes, (int) indexOffset, archiveBytes.length));
+        byte[] staleUndo = Files.readAllBytes(UndoFile.path(archiveName));
+        Files.delete(Paths.get(archiveName));
+        // Longer than the old archive, so the old index offset is within it
+        List<String> reordered = Arrays.asList(testFN.get(2), testFN.get(3), testFN.get(0), testFN.get(1));
+        new Archiver(reordered, archiveName).archive();
+        Assert.assertFalse(Files.exists(UndoFile.path(archiveName)));
+
+        Files.write(UndoFile.path(archiveName), staleUndo);
+        try {
+            new Archive(archiveName);
+            fail("The undo file of another archive was read");
+        } catch (IOException ioEx) {
+            Assert.assertTrue(ioEx.getMessage().contains("does not belong to archive " + archiveName));
+        }
+        try {
+            new MappedArchive(archiveName).close();
+            fail("The undo file of another archive was mapped");
+        } catch (IOException ioEx) {
+            Assert.assertTrue(ioEx.getMessage().contains("does not belong to archive " + archiveName));
+        }
+        try {
+            new Archiver(Arrays.asList(testFN.get(0)), archiveName).append();
+            fail("The undo file of another archive was restored");
+        } catch (IOException ioEx) {
+            Assert.assertTrue(ioEx.getMessage().contains("does not belong to archive " + archiveName));
+        }
+        Files.delete(UndoFile.path(archiveName));
+        new Archive(archiveName).unzip();
+        for (String filename : reordered) {
+            Assert.assertTrue(compareFileContent(filename, outDirName + filename));
+        }
+        cleanTestDirectory();
+    }
+
+    @Test
+    public void corruptedBlocks() throws IOException {
+        Codec codec = Codecs.forName("deflate");
+        byte[] raw = new byte[1024];
+        byte[] framed = Blocks.compress(codec, raw, raw.length);
+        try (InputStream in = new Blocks.BlockInputStream(new ByteArrayInputStream(framed), codec, raw.length, 1024)) {
+            Assert.assertArrayEquals(raw, in.readAllBytes());
+        }
+
+        // Frame headers claiming more than the block can take are rejected before a buffer of that size is allocated
+        for (int storedLength : new int[] { Integer.MIN_VALUE, -1025, 1024, Integer.MAX_VALUE }) {
+            ByteBuffer.wrap(framed).putInt(storedLength);
+            try (InputStream in = new Blocks.BlockInputStream(new ByteArrayInputStream(framed), codec, raw.length,
+                    1024)) {
+                in.readAllBytes();
+                fail("Stored length " + storedLength + " was accepted");
+            } catch (IOException ioEx) {
+                Assert.assertTrue(ioEx.getMessage().startsWith("Corrupted block"));
+            }
         }
     }
 }